@@ -0,0 +1,182 @@
+package surfstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import surfstore.SurfStoreBasic.Block;
+import surfstore.SurfStoreBasic.Empty;
+import surfstore.SurfStoreBasic.SimpleAnswer;
+
+/**
+ * StoreBlock, GetBlock and HasBlock against each storage engine.
+ *
+ * With transport "direct" the BlockStoreImpl methods are called on the
+ * benchmark thread; with "inprocess" they go through a gRPC in-process
+ * channel and server, so the difference between the two is the cost of
+ * gRPC itself without the network. The server has the StatsInterceptor
+ * installed and the access log off, as a deployed server would with
+ * --access-log-rate 0.
+ *
+ * Every iteration starts from an empty engine holding PRELOADED blocks.
+ * store writes a new block on every call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockStoreBenchmark {
+
+    private static final int PRELOADED = 4096;
+
+    @Param({"memory", "offheap", "log", "log-deflate"})
+    public String engine;
+
+    @Param({"direct", "inprocess"})
+    public String transport;
+
+    @Param({"4096", "65536"})
+    public int blockSize;
+
+    private File dir;
+    private BlockStorage storage;
+    private BlockStore.BlockStoreImpl impl;
+    private Server server;
+    private ManagedChannel channel;
+    private BlockStoreGrpc.BlockStoreBlockingStub stub;
+
+    private ByteString data;
+    private Block[] preloaded;
+    private AtomicLong nextHash;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        storage = openEngine();
+        Stats stats = new Stats();
+        impl = new BlockStore.BlockStoreImpl(storage, null, stats, new AccessLog(0, java.util.logging.Level.INFO));
+
+        if (transport.equals("inprocess")) {
+            String name = "block-bench-" + System.nanoTime();
+            server = InProcessServerBuilder.forName(name)
+                    .addService(ServerInterceptors.intercept(impl, new StatsInterceptor(stats)))
+                    .build()
+                    .start();
+            channel = InProcessChannelBuilder.forName(name).build();
+            stub = BlockStoreGrpc.newBlockingStub(channel);
+        }
+
+        /* half zeros, half random: compressible, but not trivially */
+        byte[] bytes = new byte[blockSize];
+        Random random = new Random(42);
+        for (int i = 0; i < blockSize / 2; i++) {
+            bytes[i] = (byte) random.nextInt();
+        }
+        data = ByteString.copyFrom(bytes);
+
+        nextHash = new AtomicLong();
+        preloaded = new Block[PRELOADED];
+        for (int i = 0; i < PRELOADED; i++) {
+            preloaded[i] = Block.newBuilder().setHash(newHash()).setData(data).build();
+            storage.put(preloaded[i].getHash(), data);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException, InterruptedException {
+        if (channel != null) {
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+        storage.close();
+        if (dir != null) {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private BlockStorage openEngine() throws IOException {
+        if (engine.equals("memory")) {
+            return new HeapBlockStorage();
+        }
+        if (engine.equals("offheap")) {
+            return new OffHeapBlockStorage();
+        }
+        dir = Files.createTempDirectory("block-bench").toFile();
+        BlockStorage log = new LogBlockStorage(dir);
+        return engine.equals("log-deflate") ? new CompressedBlockStorage(log) : log;
+    }
+
+    /* a unique, well-formed block hash; the data is not hashed to keep it out of the measurement */
+    private String newHash() {
+        ByteBuffer raw = ByteBuffer.allocate(HashUtils.SHA256_LENGTH);
+        raw.putLong(nextHash.incrementAndGet()).putLong(0x5eedL);
+        return HashUtils.encode(raw.array());
+    }
+
+    private Block anyPreloaded() {
+        return preloaded[ThreadLocalRandom.current().nextInt(PRELOADED)];
+    }
+
+    @Benchmark
+    public Empty store() {
+        Block block = Block.newBuilder().setHash(newHash()).setData(data).build();
+        if (stub != null) {
+            return stub.storeBlock(block);
+        }
+        Capture<Empty> reply = new Capture<Empty>();
+        impl.storeBlock(block, reply);
+        return reply.get();
+    }
+
+    @Benchmark
+    public Block get() {
+        Block request = Block.newBuilder().setHash(anyPreloaded().getHash()).build();
+        if (stub != null) {
+            return stub.getBlock(request);
+        }
+        Capture<Block> reply = new Capture<Block>();
+        impl.getBlock(request, reply);
+        return reply.get();
+    }
+
+    @Benchmark
+    public SimpleAnswer has() {
+        Block request = Block.newBuilder().setHash(anyPreloaded().getHash()).build();
+        if (stub != null) {
+            return stub.hasBlock(request);
+        }
+        Capture<SimpleAnswer> reply = new Capture<SimpleAnswer>();
+        impl.hasBlock(request, reply);
+        return reply.get();
+    }
+}
@@ -0,0 +1,45 @@
+package surfstore;
+
+import java.util.concurrent.CountDownLatch;
+
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Response observer for calling a service implementation directly, without
+ * gRPC. Some calls answer from another thread after they return, so the
+ * response is read with get(), which waits for it.
+ */
+final class Capture<T> implements StreamObserver<T> {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile T value;
+    private volatile Throwable error;
+
+    @Override
+    public void onNext(T value) {
+        this.value = value;
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        this.error = t;
+        done.countDown();
+    }
+
+    @Override
+    public void onCompleted() {
+        done.countDown();
+    }
+
+    T get() {
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for a response", e);
+        }
+        if (error != null) {
+            throw new IllegalStateException("Call failed", error);
+        }
+        return value;
+    }
+}
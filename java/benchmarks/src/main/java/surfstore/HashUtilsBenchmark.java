@@ -0,0 +1,162 @@
+package surfstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Single-thread hashing throughput of HashUtils, compared with the
+ * String-only, digest-per-call method it replaced.
+ *
+ * Besides the usual operations per second, every benchmark reports a
+ * "bytes" counter in bytes hashed per second; divide by 1e9 for GB/s per
+ * core. chunkedFile hashes a file on one thread per core, so its "bytes"
+ * is for the whole machine.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashUtilsBenchmark {
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Data {
+        @Param({"4096", "65536", "1048576"})
+        public int blockSize;
+
+        byte[] data;
+        ByteBuffer direct;
+        byte[] out;
+
+        @Setup
+        public void setup() {
+            data = new byte[blockSize];
+            new Random(42).nextBytes(data);
+            direct = ByteBuffer.allocateDirect(blockSize);
+            direct.put(data);
+            out = new byte[HashUtils.SHA256_LENGTH];
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FileData {
+        @Param({"64"})
+        public int fileMegabytes;
+
+        File file;
+        FileChannel channel;
+        List<Chunk> chunks;
+        ExecutorService pool;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            file = File.createTempFile("hash-bench", ".bin");
+            byte[] block = new byte[1 << 20];
+            Random random = new Random(42);
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                for (int i = 0; i < fileMegabytes; i++) {
+                    random.nextBytes(block);
+                    out.write(block);
+                }
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            chunks = new FixedChunker(Client.BLOCK_SIZE).split(channel);
+            pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            pool.shutdownNow();
+            channel.close();
+            file.delete();
+        }
+    }
+
+    /* the hashing code HashUtils had before: a new digest per call and String input only */
+    private static String legacySha256(String s) {
+        MessageDigest digest = null;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        byte[] hash = digest.digest(s.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(hash);
+    }
+
+    @Benchmark
+    public String legacyString(Data d, Bytes bytes) {
+        bytes.bytes += d.blockSize;
+        return legacySha256(new String(d.data, StandardCharsets.ISO_8859_1));
+    }
+
+    @Benchmark
+    public String byteArray(Data d, Bytes bytes) {
+        bytes.bytes += d.blockSize;
+        return HashUtils.sha256(d.data);
+    }
+
+    @Benchmark
+    public byte[] rawDirectBuffer(Data d, Bytes bytes) {
+        bytes.bytes += d.blockSize;
+        d.direct.clear();
+        HashUtils.sha256Raw(d.direct, d.out, 0);
+        return d.out;
+    }
+
+    @Benchmark
+    public void chunkedFile(FileData f, Bytes bytes, Blackhole hole) throws Exception {
+        for (Future<String[]> batch : HashUtils.sha256Chunks(f.channel, f.chunks, 256, f.pool)) {
+            try {
+                hole.consume(batch.get());
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+        bytes.bytes += (long) f.fileMegabytes << 20;
+    }
+}
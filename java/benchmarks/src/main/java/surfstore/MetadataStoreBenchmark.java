@@ -0,0 +1,210 @@
+package surfstore;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import surfstore.SurfStoreBasic.FileInfo;
+import surfstore.SurfStoreBasic.WriteResult;
+
+/**
+ * ReadFile and ModifyFile on a centralized MetadataStore.
+ *
+ * A BlockStore holding every block of the blocklist runs on a loopback
+ * port, since ModifyFile asks it which blocks are missing; the
+ * MetadataStore writes its log to a temporary directory. With transport
+ * "direct" MetadataStoreImpl is called on the benchmark thread, with
+ * "inprocess" through a gRPC in-process channel.
+ *
+ * modify writes a new version of a file of its own per thread, so it
+ * measures the missing-block check and the write-ahead log; with
+ * knownBlocks the check is answered from the MetadataStore's set of
+ * confirmed blocks after the first write. read reads back a file with
+ * the whole blocklist. contended has four threads race to write new
+ * versions of one small file; the OLD_VERSION answers of the losers are
+ * counted as operations, as they are work a server under contention
+ * does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataStoreBenchmark {
+
+    private static final int CONTENDED_BLOCKS = 16;
+
+    /* written once with the whole blocklist, then only read */
+    private static final String READ_FILE = "read-only";
+
+    @State(Scope.Benchmark)
+    public static class Servers {
+        @Param({"16", "1024", "16384"})
+        public int blocklist;
+
+        @Param({"direct", "inprocess"})
+        public String transport;
+
+        @Param({"false", "true"})
+        public boolean knownBlocks;
+
+        File dir;
+        Server blockServer;
+        WriteAheadLog log;
+        MetadataStore.MetadataStoreImpl impl;
+        Server server;
+        ManagedChannel channel;
+        MetadataStoreGrpc.MetadataStoreBlockingStub stub;
+        List<String> hashes;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            BlockStorage blocks = new HeapBlockStorage();
+            hashes = new ArrayList<String>(blocklist);
+            for (int i = 0; i < blocklist; i++) {
+                ByteBuffer raw = ByteBuffer.allocate(HashUtils.SHA256_LENGTH);
+                raw.putLong(i).putLong(0x5eedL);
+                hashes.add(HashUtils.encode(raw.array()));
+                blocks.put(hashes.get(i), ByteString.copyFromUtf8("block " + i));
+            }
+            blockServer = ServerBuilder.forPort(0)
+                    .addService(new BlockStore.BlockStoreImpl(blocks, null, new Stats(), new AccessLog(0, java.util.logging.Level.INFO)))
+                    .build()
+                    .start();
+
+            dir = Files.createTempDirectory("metadata-bench").toFile();
+            File configFile = new File(dir, "config.txt");
+            try (Writer out = new FileWriter(configFile)) {
+                out.write("M: 1\nL: 1\nmetadata1: 0\nblock: " + blockServer.getPort() + "\n");
+            }
+            log = new WriteAheadLog(new File(dir, "metadata1"));
+            MetadataStore store = new MetadataStore(new ConfigReader(configFile), 1, log, 0, 1e6);
+
+            Stats stats = new Stats();
+            impl = new MetadataStore.MetadataStoreImpl(true, store.blockCluster, log, null, null, 0, stats, new AccessLog(0, java.util.logging.Level.INFO),
+                    new KnownBlocks(knownBlocks ? 1000000 : 0, 600000), 600000);
+            log.recover(impl.storedFile);
+
+            if (transport.equals("inprocess")) {
+                String name = "metadata-bench-" + System.nanoTime();
+                server = InProcessServerBuilder.forName(name)
+                        .addService(ServerInterceptors.intercept(impl, new StatsInterceptor(stats)))
+                        .build()
+                        .start();
+                channel = InProcessChannelBuilder.forName(name).build();
+                stub = MetadataStoreGrpc.newBlockingStub(channel);
+            }
+
+            modify(FileInfo.newBuilder().setFilename(READ_FILE).setVersion(1).addAllBlocklist(hashes).build());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException, InterruptedException {
+            if (channel != null) {
+                channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+                server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            }
+            blockServer.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            log.close();
+            deleteRecursively(dir);
+        }
+
+        WriteResult modify(FileInfo request) {
+            if (stub != null) {
+                return stub.modifyFile(request);
+            }
+            Capture<WriteResult> reply = new Capture<WriteResult>();
+            impl.modifyFile(request, reply);
+            return reply.get();
+        }
+
+        FileInfo read(FileInfo request) {
+            if (stub != null) {
+                return stub.readFile(request);
+            }
+            Capture<FileInfo> reply = new Capture<FileInfo>();
+            impl.readFile(request, reply);
+            return reply.get();
+        }
+    }
+
+    /* the file a thread writes, and the version it writes next */
+    @State(Scope.Thread)
+    public static class OwnFile {
+        String name;
+        int version;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            name = "file-" + Thread.currentThread().getId();
+            version = 1;
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Benchmark
+    public WriteResult modify(Servers s, OwnFile f) {
+        WriteResult result = s.modify(FileInfo.newBuilder()
+                .setFilename(f.name)
+                .setVersion(f.version)
+                .addAllBlocklist(s.hashes)
+                .build());
+        f.version = result.getCurrentVersion() + 1;
+        return result;
+    }
+
+    @Benchmark
+    public FileInfo read(Servers s) {
+        return s.read(FileInfo.newBuilder().setFilename(READ_FILE).build());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public WriteResult contended(Servers s) {
+        String name = "contended";
+        FileInfo current = s.read(FileInfo.newBuilder().setFilename(name).build());
+        return s.modify(FileInfo.newBuilder()
+                .setFilename(name)
+                .setVersion(current.getVersion() + 1)
+                .addAllBlocklist(s.hashes.subList(0, CONTENDED_BLOCKS))
+                .build());
+    }
+}
@@ -0,0 +1,163 @@
+package surfstore;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sampled, asynchronous log of RPC calls.
+ *
+ * A call is logged with probability sampleRate. Its method name and one
+ * key=value field go into a fixed-size ring buffer; a background thread
+ * formats them as "method=<name> <key>=<value>" lines and writes them to
+ * the "surfstore.access" logger at the configured level. Callers never
+ * build strings or touch a log handler: a sampled call costs one
+ * allocation and a compare-and-set, an unsampled one a random draw, and
+ * with a sample rate of 0 or a level the logger drops, nothing at all.
+ * When the buffer is full entries are dropped and counted rather than
+ * making callers wait.
+ */
+public final class AccessLog {
+    private static final Logger accessLogger = Logger.getLogger("surfstore.access");
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /* how long the writer sleeps when the buffer is empty */
+    private static final long IDLE_NANOS = 10000000L;
+
+    private final boolean enabled;
+    private final double sampleRate;
+    private final Level level;
+    private final AtomicReferenceArray<Entry> ring;
+    private final int mask;
+    /* next slot to read, and next slot to claim for writing */
+    private final AtomicLong head;
+    private final AtomicLong tail;
+    private final AtomicLong dropped;
+
+    public AccessLog(double sampleRate, Level level) {
+        this(sampleRate, level, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity size of the ring buffer; rounded up to a power of two
+     */
+    public AccessLog(double sampleRate, Level level, int capacity) {
+        this.enabled = sampleRate > 0 && accessLogger.isLoggable(level);
+        this.sampleRate = sampleRate;
+        this.level = level;
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.ring = new AtomicReferenceArray<Entry>(size);
+        this.mask = size - 1;
+        this.head = new AtomicLong();
+        this.tail = new AtomicLong();
+        this.dropped = new AtomicLong();
+
+        if (enabled) {
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, "access-log");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    public void log(String method, String key, String value) {
+        if (sampled()) {
+            offer(new Entry(System.currentTimeMillis(), method, key, value, 0));
+        }
+    }
+
+    public void log(String method, String key, long value) {
+        if (sampled()) {
+            offer(new Entry(System.currentTimeMillis(), method, key, null, value));
+        }
+    }
+
+    /**
+     * Entries dropped because the buffer was full.
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    private boolean sampled() {
+        return enabled && (sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate);
+    }
+
+    private void offer(Entry entry) {
+        while (true) {
+            long slot = tail.get();
+            if (slot - head.get() > mask) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (tail.compareAndSet(slot, slot + 1)) {
+                ring.lazySet((int) (slot & mask), entry);
+                return;
+            }
+        }
+    }
+
+    /*
+     * Runs on the writer thread. A claimed slot stays null until its
+     * producer has stored the entry, so the writer waits for it rather
+     * than skipping ahead.
+     */
+    private void drain() {
+        SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+        StringBuilder line = new StringBuilder();
+        long reported = 0;
+
+        while (true) {
+            long slot = head.get();
+            Entry entry = ring.get((int) (slot & mask));
+            if (entry == null) {
+                long lost = dropped.get();
+                if (lost != reported) {
+                    accessLogger.log(level, "dropped=" + (lost - reported));
+                    reported = lost;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            ring.set((int) (slot & mask), null);
+            head.lazySet(slot + 1);
+
+            line.setLength(0);
+            line.append("time=").append(time.format(new Date(entry.time)))
+                    .append(" method=").append(entry.method)
+                    .append(' ').append(entry.key).append('=');
+            if (entry.text != null) {
+                line.append(entry.text);
+            } else {
+                line.append(entry.number);
+            }
+            accessLogger.log(level, line.toString());
+        }
+    }
+
+    private static final class Entry {
+        final long time;
+        final String method;
+        final String key;
+        final String text;
+        final long number;
+
+        Entry(long time, String method, String key, String text, long number) {
+            this.time = time;
+            this.method = method;
+            this.key = key;
+            this.text = text;
+            this.number = number;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package surfstore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * Client-side cache of blocks by hash, kept on disk between runs.
+ *
+ * Blocks are stored in a LogBlockStorage in the cache directory, whose
+ * segment footers are the index. The cache is filled with every block
+ * the client downloads or uploads, and with the blocks of a local file
+ * about to be replaced by a download, so a download only fetches the
+ * blocks that changed.
+ *
+ * Eviction is least recently used at segment granularity: once the
+ * segments take more than maxBytes, the oldest one is deleted, and a
+ * block read from the older half of the segments is first copied to the
+ * newest one. Blocks are checked against their hash when read, so a
+ * damaged cache costs a download, never a wrong file.
+ *
+ * One process uses a cache directory at a time; a second one runs
+ * without a cache.
+ */
+public final class BlockCache implements Closeable {
+    private static final Logger logger = Logger.getLogger(BlockCache.class.getName());
+
+    /* chunks hashed per task when adding a local file */
+    private static final int HASH_BATCH = 256;
+
+    private static final long MIN_SEGMENT_SIZE = 1L << 20;
+    private static final long MAX_SEGMENT_SIZE = 64L << 20;
+    /* segments the cache is split into, so one eviction frees this fraction of it */
+    private static final int SEGMENTS = 16;
+
+    private final long maxBytes;
+    private final long segmentSize;
+    private final FileChannel lockChannel;
+    private final LogBlockStorage storage;
+    /* bytes added since the size of the cache was last checked */
+    private long unchecked;
+
+    private BlockCache(long maxBytes, long segmentSize, FileChannel lockChannel, LogBlockStorage storage) {
+        this.maxBytes = maxBytes;
+        this.segmentSize = segmentSize;
+        this.lockChannel = lockChannel;
+        this.storage = storage;
+    }
+
+    /**
+     * Open the cache in dir, or return null if another process has it.
+     */
+    public static BlockCache open(File dir, long maxBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + dir);
+        }
+        FileChannel lockChannel = new RandomAccessFile(new File(dir, "lock"), "rw").getChannel();
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            logger.warning("Block cache " + dir + " is in use; running without it");
+            return null;
+        }
+
+        long segmentSize = Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, maxBytes / SEGMENTS));
+        BlockCache cache = new BlockCache(maxBytes, segmentSize, lockChannel,
+                new LogBlockStorage(dir, segmentSize));
+        cache.evict();
+        return cache;
+    }
+
+    public boolean contains(String hash) {
+        return storage.contains(hash);
+    }
+
+    /**
+     * The data of a cached block, or null if it is not cached or its data
+     * does not match its hash.
+     */
+    public ByteString get(String hash) throws IOException {
+        ByteString data = storage.get(hash);
+        if (data == null) {
+            return null;
+        }
+        if (!HashUtils.sha256(data.asReadOnlyByteBuffer()).equals(hash)) {
+            logger.warning("Dropping damaged cached block " + hash);
+            storage.delete(hash);
+            return null;
+        }
+        storage.touch(hash);
+        return data;
+    }
+
+    public void put(String hash, ByteString data) throws IOException {
+        storage.put(hash, data);
+        unchecked += data.size();
+        if (unchecked >= segmentSize / 4) {
+            evict();
+        }
+    }
+
+    /**
+     * Add the chunks of a local file whose hashes are already known.
+     */
+    public void putChunks(FileChannel channel, List<Chunk> chunks, List<String> hashes) throws IOException {
+        for (int i = 0; i < chunks.size(); i++) {
+            if (!storage.contains(hashes.get(i))) {
+                put(hashes.get(i), read(channel, chunks.get(i)));
+            }
+        }
+    }
+
+    /**
+     * Cut a local file into blocks, hash them on the pool and add them.
+     */
+    public void putFile(File file, Chunker chunker, ExecutorService hashPool) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            List<Chunk> chunks = chunker.split(channel);
+            List<Future<String[]>> batches = HashUtils.sha256Chunks(channel, chunks, HASH_BATCH, hashPool);
+            for (int i = 0; i < batches.size(); i++) {
+                String[] hashes;
+                try {
+                    hashes = batches.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while hashing " + file, e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Hashing " + file + " failed", e.getCause());
+                }
+                for (int j = 0; j < hashes.length; j++) {
+                    if (!storage.contains(hashes[j])) {
+                        put(hashes[j], read(channel, chunks.get(i * HASH_BATCH + j)));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Bytes of live block data in the cache.
+     */
+    public long bytes() {
+        return storage.bytes();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            storage.close();
+        } finally {
+            lockChannel.close();
+        }
+    }
+
+    /* drop the oldest segments until the cache fits in maxBytes */
+    private void evict() throws IOException {
+        unchecked = 0;
+        while (storage.diskBytes() > maxBytes) {
+            if (storage.dropOldestSegment() == 0) {
+                break;
+            }
+        }
+    }
+
+    private static ByteString read(FileChannel channel, Chunk chunk) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(chunk.length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, chunk.offset + buffer.position()) < 0) {
+                throw new IOException("File ends before offset " + (chunk.offset + chunk.length));
+            }
+        }
+        buffer.flip();
+        return UnsafeByteOperations.unsafeWrap(buffer);
+    }
+}
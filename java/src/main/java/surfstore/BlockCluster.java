@@ -0,0 +1,141 @@
+package surfstore;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import surfstore.SurfStoreBasic.HashList;
+
+/**
+ * Client side of a sharded BlockStore.
+ *
+ * Holds a channel to every block server in the config and the HashRing
+ * that decides which of them stores each block. Single-block calls go to
+ * the owning server; batch calls are split by owner, sent to all owners
+ * at once, and their results put back in the caller's order.
+ */
+public final class BlockCluster {
+
+    /* maximum number of hashes sent in one FindMissingBlocks call */
+    public static final int MISSING_BLOCKS_BATCH = 8192;
+
+    private final HashRing ring;
+    private final Map<Integer, ManagedChannel> channels;
+    private final Map<Integer, BlockStoreGrpc.BlockStoreBlockingStub> blockingStubs;
+    private final Map<Integer, BlockStoreGrpc.BlockStoreStub> asyncStubs;
+    private final Map<Integer, BlockStoreGrpc.BlockStoreFutureStub> futureStubs;
+
+    public BlockCluster(ConfigReader config) {
+        this.channels = new TreeMap<Integer, ManagedChannel>();
+        this.blockingStubs = new TreeMap<Integer, BlockStoreGrpc.BlockStoreBlockingStub>();
+        this.asyncStubs = new TreeMap<Integer, BlockStoreGrpc.BlockStoreStub>();
+        this.futureStubs = new TreeMap<Integer, BlockStoreGrpc.BlockStoreFutureStub>();
+
+        for (int id = 1; id <= config.getNumBlockServers(); id++) {
+            ManagedChannel channel = ManagedChannelBuilder.forAddress("127.0.0.1", config.getBlockPort(id))
+                    .usePlaintext(true).build();
+            channels.put(id, channel);
+            blockingStubs.put(id, BlockStoreGrpc.newBlockingStub(channel));
+            asyncStubs.put(id, BlockStoreGrpc.newStub(channel));
+            futureStubs.put(id, BlockStoreGrpc.newFutureStub(channel));
+        }
+        this.ring = new HashRing(channels.keySet());
+    }
+
+    public HashRing ring() {
+        return ring;
+    }
+
+    public List<Integer> nodes() {
+        return ring.nodes();
+    }
+
+    /**
+     * Stub for the server that stores the block with this hash.
+     */
+    public BlockStoreGrpc.BlockStoreBlockingStub blockingStub(String hash) {
+        return blockingStubs.get(ring.nodeFor(hash));
+    }
+
+    public BlockStoreGrpc.BlockStoreBlockingStub blockingStub(int node) {
+        return blockingStubs.get(node);
+    }
+
+    public BlockStoreGrpc.BlockStoreStub asyncStub(int node) {
+        return asyncStubs.get(node);
+    }
+
+    public BlockStoreGrpc.BlockStoreFutureStub futureStub(int node) {
+        return futureStubs.get(node);
+    }
+
+    /**
+     * Split hashes by the server that stores them, keeping their order
+     * within each server's list.
+     */
+    public Map<Integer, List<String>> partition(List<String> hashes) {
+        Map<Integer, List<String>> byNode = new LinkedHashMap<Integer, List<String>>();
+        for (String hash : hashes) {
+            int node = ring.nodeFor(hash);
+            List<String> list = byNode.get(node);
+            if (list == null) {
+                list = new ArrayList<String>();
+                byNode.put(node, list);
+            }
+            list.add(hash);
+        }
+        return byNode;
+    }
+
+    /**
+     * Ask every server which of its share of the hashes it lacks. Each
+     * server's share is sent in batches of MISSING_BLOCKS_BATCH, all at
+     * once. The missing hashes come back in the order given.
+     */
+    public ListenableFuture<List<String>> findMissingBlocks(final List<String> hashes) {
+        List<ListenableFuture<HashList>> batches = new ArrayList<ListenableFuture<HashList>>();
+        for (Map.Entry<Integer, List<String>> share : partition(hashes).entrySet()) {
+            List<String> list = share.getValue();
+            for (int start = 0; start < list.size(); start += MISSING_BLOCKS_BATCH) {
+                int end = Math.min(start + MISSING_BLOCKS_BATCH, list.size());
+                batches.add(futureStubs.get(share.getKey()).findMissingBlocks(HashList.newBuilder()
+                        .addAllHashes(list.subList(start, end))
+                        .build()));
+            }
+        }
+
+        return Futures.transform(Futures.allAsList(batches), new Function<List<HashList>, List<String>>() {
+            @Override
+            public List<String> apply(List<HashList> results) {
+                Set<String> missing = new HashSet<String>();
+                for (HashList result : results) {
+                    missing.addAll(result.getHashesList());
+                }
+                List<String> ordered = new ArrayList<String>(missing.size());
+                for (String hash : hashes) {
+                    if (missing.remove(hash)) {
+                        ordered.add(hash);
+                    }
+                }
+                return ordered;
+            }
+        });
+    }
+
+    public void shutdown() throws InterruptedException {
+        for (ManagedChannel channel : channels.values()) {
+            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package surfstore;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import surfstore.SurfStoreBasic.Block;
+
+/**
+ * Per-block compression for stored blocks.
+ *
+ * A stored block is a one byte codec tag (the Block.Codec number) and a
+ * body:
+ *
+ *   RAW     = the block data
+ *   DEFLATE = data length (int), raw deflate stream
+ *
+ * encode() picks the codec for each block on its own. Blocks under
+ * MIN_COMPRESS_SIZE are kept raw. Others are deflated into a buffer sized
+ * to the largest useful result, MAX_RATIO of the input; if the output
+ * outgrows it the block is kept raw, so incompressible data (media,
+ * archives, encrypted files) costs one partial deflate pass and no space.
+ *
+ * Each thread reuses one Deflater and one Inflater.
+ */
+public final class BlockCodec {
+
+    /* blocks smaller than this are not worth compressing */
+    public static final int MIN_COMPRESS_SIZE = 256;
+
+    /* compressed blocks must be at most this fraction of the original */
+    public static final double MAX_RATIO = 0.875;
+
+    private static final int LENGTH_SIZE = 4;
+
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private static final ByteString RAW_TAG = ByteString.copyFrom(new byte[] { (byte) Block.Codec.RAW_VALUE });
+
+    private BlockCodec() {
+    }
+
+    /**
+     * The stored form of a block: compressed if that saves enough space,
+     * otherwise the data itself behind a RAW tag, without copying it.
+     */
+    public static ByteString encode(ByteString data) {
+        int length = data.size();
+        if (length < MIN_COMPRESS_SIZE) {
+            return RAW_TAG.concat(data);
+        }
+
+        byte[] out = new byte[1 + LENGTH_SIZE + (int) (length * MAX_RATIO)];
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(data.toByteArray());
+        deflater.finish();
+        int position = 1 + LENGTH_SIZE;
+        while (!deflater.finished() && position < out.length) {
+            position += deflater.deflate(out, position, out.length - position);
+        }
+        if (!deflater.finished()) {
+            return RAW_TAG.concat(data);
+        }
+
+        ByteBuffer.wrap(out).put((byte) Block.Codec.DEFLATE_VALUE).putInt(length);
+        return UnsafeByteOperations.unsafeWrap(out, 0, position);
+    }
+
+    /**
+     * The block data of a stored block.
+     */
+    public static ByteString decode(ByteString stored) {
+        return decode(codec(stored), body(stored));
+    }
+
+    /**
+     * The block data of a body in the given codec, as sent in a Block.
+     */
+    public static ByteString decode(Block.Codec codec, ByteString body) {
+        switch (codec) {
+        case RAW:
+            return body;
+        case DEFLATE:
+            return inflate(body);
+        default:
+            throw new IllegalArgumentException("Unknown block codec " + codec);
+        }
+    }
+
+    public static Block.Codec codec(ByteString stored) {
+        Block.Codec codec = Block.Codec.forNumber(stored.byteAt(0));
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown block codec " + stored.byteAt(0));
+        }
+        return codec;
+    }
+
+    /* the stored block without its tag; shares memory with it */
+    public static ByteString body(ByteString stored) {
+        return stored.substring(1);
+    }
+
+    private static ByteString inflate(ByteString body) {
+        int length = body.substring(0, LENGTH_SIZE).asReadOnlyByteBuffer().getInt();
+        byte[] out = new byte[length];
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(body.substring(LENGTH_SIZE).toByteArray());
+        try {
+            int position = 0;
+            while (position < length && !inflater.finished()) {
+                int n = inflater.inflate(out, position, length - position);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                position += n;
+            }
+            if (position != length) {
+                throw new IllegalArgumentException("Compressed block is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Compressed block is corrupt", e);
+        }
+        return UnsafeByteOperations.unsafeWrap(out);
+    }
+}
@@ -0,0 +1,69 @@
+package surfstore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Storage engine behind the BlockStore service.
+ *
+ * Blocks are addressed by their hash and never change once written, so
+ * storing a hash that is already present is a no-op. Implementations
+ * must be safe to call from several gRPC worker threads at once.
+ *
+ * Block data is passed as ByteString in both directions so that the bytes
+ * of a gRPC request can be stored, and stored bytes returned, without
+ * copying them into intermediate arrays.
+ */
+public interface BlockStorage extends Closeable {
+
+    /**
+     * Store a block. Does nothing if a block with this hash exists.
+     */
+    void put(String hash, ByteString data) throws IOException;
+
+    /**
+     * Make every block put so far durable. A stored block must not be
+     * acknowledged until this returns.
+     */
+    void sync() throws IOException;
+
+    /**
+     * Return the block with this hash, or null if it is not stored. The
+     * result may share memory with the storage engine.
+     */
+    ByteString get(String hash) throws IOException;
+
+    boolean contains(String hash);
+
+    /**
+     * Remove the block with this hash. Returns false if it was not stored.
+     */
+    boolean delete(String hash) throws IOException;
+
+    /**
+     * Hashes of the stored blocks. The iterator is weakly consistent: it
+     * never fails because of concurrent puts or deletes, and may or may
+     * not reflect them.
+     */
+    Iterator<String> hashes();
+
+    /**
+     * Number of blocks currently stored.
+     */
+    long count();
+
+    /**
+     * Total size of the stored block data in bytes.
+     */
+    long bytes();
+
+    /**
+     * Reclaim space left behind by deleted blocks, holding up reads and
+     * writes for a short batch at a time at most. Returns the number of
+     * bytes freed.
+     */
+    long compact() throws IOException;
+}
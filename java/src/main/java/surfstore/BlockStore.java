@@ -2,15 +2,28 @@ package surfstore;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.google.protobuf.ByteString;
 
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
@@ -18,27 +31,92 @@ import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 import surfstore.SurfStoreBasic.Block;
 import surfstore.SurfStoreBasic.Block.Builder;
+import surfstore.SurfStoreBasic.DeleteResult;
 import surfstore.SurfStoreBasic.Empty;
+import surfstore.SurfStoreBasic.HashList;
+import surfstore.SurfStoreBasic.RebalanceResult;
 import surfstore.SurfStoreBasic.SimpleAnswer;
 
 
 public final class BlockStore {
     private static final Logger logger = Logger.getLogger(BlockStore.class.getName());
 
+    /* file in a data directory naming the --compression setting it was written with */
+    private static final String COMPRESSION_FILE = "compression";
+
     protected Server server;
 	protected ConfigReader config;
+	protected BlockStorage storage;
+	protected Rebalancer rebalancer;
+	protected ScheduledExecutorService compactor;
+	protected final AtomicLong compactedBytes = new AtomicLong();
 
-    public BlockStore(ConfigReader config) {
+    public BlockStore(ConfigReader config, BlockStorage storage, Rebalancer rebalancer) {
     	this.config = config;
+    	this.storage = storage;
+    	this.rebalancer = rebalancer;
 	}
 
-	private void start(int port, int numThreads) throws IOException {
+	private void start(int port, int numThreads, int statsInterval, int compactInterval,
+                       final AccessLog accessLog) throws IOException {
+        Stats stats = new Stats();
+        final BlockStoreImpl impl = new BlockStoreImpl(storage, rebalancer, stats, accessLog);
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(numThreads);
         server = ServerBuilder.forPort(port)
-                .addService(new BlockStoreImpl())
-                .executor(Executors.newFixedThreadPool(numThreads))
+                .addService(ServerInterceptors.intercept(impl, new StatsInterceptor(stats)))
+                .executor(executor)
                 .build()
                 .start();
         logger.info("Server started, listening on " + port);
+
+        stats.executorGauges(executor);
+        stats.gauge("storage.blocks", new Stats.Gauge() {
+            @Override
+            public long value() {
+                return storage.count();
+            }
+        });
+        stats.gauge("storage.bytes", new Stats.Gauge() {
+            @Override
+            public long value() {
+                return storage.bytes();
+            }
+        });
+        stats.gauge("storage.compacted_bytes", new Stats.Gauge() {
+            @Override
+            public long value() {
+                return compactedBytes.get();
+            }
+        });
+        stats.gauge("gc.tracked_blocks", new Stats.Gauge() {
+            @Override
+            public long value() {
+                return impl.idleBlocks.size();
+            }
+        });
+        stats.gauge("access_log.dropped", new Stats.Gauge() {
+            @Override
+            public long value() {
+                return accessLog.dropped();
+            }
+        });
+        if (statsInterval > 0) {
+            stats.logEvery(statsInterval, logger);
+        }
+
+        compactor = Executors.newSingleThreadScheduledExecutor();
+        if (compactInterval > 0) {
+            compactor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compactedBytes.addAndGet(storage.compact());
+                    } catch (IOException e) {
+                        logger.warning("Compaction failed: " + e);
+                    }
+                }
+            }, compactInterval, compactInterval, TimeUnit.SECONDS);
+        }
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
@@ -52,6 +130,16 @@ public final class BlockStore {
     private void stop() {
         if (server != null) {
             server.shutdown();
+            compactor.shutdown();
+            try {
+                server.awaitTermination();
+                compactor.awaitTermination(1, TimeUnit.MINUTES);
+                storage.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -66,8 +154,28 @@ public final class BlockStore {
                 .description("BlockStore server for SurfStore");
         parser.addArgument("config_file").type(String.class)
                 .help("Path to configuration file");
+        parser.addArgument("-n", "--number").type(Integer.class).setDefault(1)
+                .help("Set which number this block server is");
         parser.addArgument("-t", "--threads").type(Integer.class).setDefault(10)
                 .help("Maximum number of concurrent threads");
+        parser.addArgument("-s", "--storage").choices("log", "memory", "offheap").setDefault("log")
+                .help("Storage engine for blocks");
+        parser.addArgument("--stats-interval").type(Integer.class).setDefault(60)
+                .help("Seconds between logged stats reports; 0 turns them off");
+        parser.addArgument("--access-log-rate").type(Double.class).setDefault(0.01)
+                .help("Fraction of calls written to the access log; 0 turns it off");
+        parser.addArgument("--access-log-level").choices("FINEST", "FINER", "FINE", "CONFIG", "INFO")
+                .setDefault("INFO")
+                .help("Level of the access log entries; calls are not sampled if the surfstore.access logger drops it");
+        parser.addArgument("-c", "--compression").choices("none", "deflate").setDefault("none")
+                .help("Compress blocks that shrink enough when stored; a data directory can only"
+                        + " be opened with the setting it was first opened with");
+        parser.addArgument("--compact-interval").type(Integer.class).setDefault(60)
+                .help("Seconds between compactions, which reclaim the space of deleted blocks;"
+                        + " 0 turns them off");
+        parser.addArgument("-d", "--data-dir").type(String.class)
+                .help("Directory holding the block segments of the log storage engine"
+                        + " (default: blocks, or blocks<n> for block server n > 1)");
 
         Namespace res = null;
         try {
@@ -78,6 +186,54 @@ public final class BlockStore {
         return res;
     }
 
+    private static BlockStorage openStorage(Namespace c_args) throws IOException {
+        BlockStorage storage = openEngine(c_args);
+        if (c_args.getString("compression").equals("deflate")) {
+            return new CompressedBlockStorage(storage);
+        }
+        return storage;
+    }
+
+    private static BlockStorage openEngine(Namespace c_args) throws IOException {
+        if (c_args.getString("storage").equals("memory")) {
+            return new HeapBlockStorage();
+        }
+        if (c_args.getString("storage").equals("offheap")) {
+            return new OffHeapBlockStorage();
+        }
+        String dataDir = c_args.getString("data_dir");
+        if (dataDir == null) {
+            int number = c_args.getInt("number");
+            dataDir = (number == 1) ? "blocks" : "blocks" + number;
+        }
+        checkCompression(new File(dataDir), c_args.getString("compression"));
+        return new LogBlockStorage(new File(dataDir));
+    }
+
+    /*
+     * Record the compression setting in a data directory the first time
+     * it is opened, and refuse to open it with the other one afterwards:
+     * blocks stored without compression have no codec tag, so reading
+     * them with the other setting would return the wrong bytes.
+     */
+    private static void checkCompression(File dir, String compression) throws IOException {
+        File marker = new File(dir, COMPRESSION_FILE);
+        if (marker.isFile()) {
+            String recorded = new String(Files.readAllBytes(marker.toPath()), StandardCharsets.UTF_8).trim();
+            if (!recorded.equals(compression)) {
+                throw new IOException("Data directory " + dir + " was written with --compression " + recorded
+                        + ", not " + compression);
+            }
+            return;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create data directory " + dir);
+        }
+        File temp = new File(dir, COMPRESSION_FILE + ".tmp");
+        Files.write(temp.toPath(), (compression + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), marker.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
     public static void main(String[] args) throws Exception {
         Namespace c_args = parseArgs(args);
         if (c_args == null){
@@ -87,19 +243,47 @@ public final class BlockStore {
         File configf = new File(c_args.getString("config_file"));
         ConfigReader config = new ConfigReader(configf);
 
-        final BlockStore server = new BlockStore(config);
-        server.start(config.getBlockPort(), c_args.getInt("threads"));
+        int number = c_args.getInt("number");
+        if (number < 1 || number > config.getNumBlockServers()) {
+            throw new RuntimeException("No block server " + number + " in " + configf);
+        }
+
+        BlockStorage storage = openStorage(c_args);
+        final BlockStore server = new BlockStore(config, storage, new Rebalancer(configf, number, storage));
+        server.start(config.getBlockPort(number), c_args.getInt("threads"), c_args.getInt("stats_interval"),
+                c_args.getInt("compact_interval"),
+                new AccessLog(c_args.getDouble("access_log_rate"), Level.parse(c_args.getString("access_log_level"))));
         server.blockUntilShutdown();
     }
 
 /////////////////////////////////////////////////////////////////////////////////////////////////
     static class BlockStoreImpl extends BlockStoreGrpc.BlockStoreImplBase {
 
-		protected Map<String, byte[]> blockMap;
+		/* hashes per ListIdleBlocks message */
+		private static final int IDLE_BATCH = 8192;
+		/* blocks deleted per hold of the sweep lock */
+		private static final int DELETE_BATCH = 256;
 
-		public BlockStoreImpl() {
+		protected BlockStorage storage;
+		protected Rebalancer rebalancer;
+		protected Stats stats;
+		protected AccessLog accessLog;
+		protected IdleBlocks idleBlocks;
+		/*
+		 * Held shared while a block is used, and exclusively while idle
+		 * blocks are deleted, so a block cannot be deleted between a client
+		 * being told it is present and its use being recorded.
+		 */
+		protected ReadWriteLock sweepLock;
+
+		public BlockStoreImpl(BlockStorage storage, Rebalancer rebalancer, Stats stats, AccessLog accessLog) {
 			super();
-			this.blockMap = new HashMap<String, byte[]>();
+			this.storage = storage;
+			this.rebalancer = rebalancer;
+			this.stats = stats;
+			this.accessLog = accessLog;
+			this.idleBlocks = new IdleBlocks();
+			this.sweepLock = new ReentrantReadWriteLock();
 		}
 
         @Override
@@ -113,9 +297,24 @@ public final class BlockStore {
 	public void storeBlock(surfstore.SurfStoreBasic.Block request,
 				io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.Empty> responseObserver) {
 			
-			logger.info("Storing block with hash " + request.getHash());
+			accessLog.log("StoreBlock", "hash", request.getHash());
 
-			blockMap.put(request.getHash(), request.getData().toByteArray());
+			sweepLock.readLock().lock();
+			try {
+				idleBlocks.use(request.getHash());
+				storage.put(request.getHash(), request.getData());
+				storage.sync();
+			} catch (IllegalArgumentException e) {
+				responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage())
+						.asRuntimeException());
+				return;
+			} catch (IOException e) {
+				responseObserver.onError(Status.INTERNAL.withDescription("Cannot store block")
+						.withCause(e).asRuntimeException());
+				return;
+			} finally {
+				sweepLock.readLock().unlock();
+			}
 
 			Empty response = Empty.newBuilder().build();
                         responseObserver.onNext(response);
@@ -126,14 +325,20 @@ public final class BlockStore {
 	public void getBlock(surfstore.SurfStoreBasic.Block request,
 				io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.Block> responseObserver) {
 			
-			logger.info("Getting block with hash " + request.getHash());
-
-			byte[] data = blockMap.get(request.getHash());
+			accessLog.log("GetBlock", "hash", request.getHash());
 
-			Builder builder = Block.newBuilder();
-			builder.setData(ByteString.copyFrom(data));
-			builder.setHash(request.getHash());
-			Block response = builder.build();
+			Block response;
+			try {
+				response = lookup(request.getHash());
+			} catch (IOException e) {
+				responseObserver.onError(Status.INTERNAL.withDescription("Cannot read block")
+						.withCause(e).asRuntimeException());
+				return;
+			} catch (IllegalArgumentException e) {
+				responseObserver.onError(Status.DATA_LOSS.withDescription(e.getMessage())
+						.withCause(e).asRuntimeException());
+				return;
+			}
 
                         responseObserver.onNext(response);
                         responseObserver.onCompleted();
@@ -143,13 +348,291 @@ public final class BlockStore {
 	public void hasBlock(surfstore.SurfStoreBasic.Block request,
 				io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.SimpleAnswer> responseObserver) {
 			
-			logger.info("Testing for existence of block with hash " + request.getHash());
+			accessLog.log("HasBlock", "hash", request.getHash());
 
-			boolean answer = blockMap.containsKey(request.getHash());
+			boolean answer;
+			sweepLock.readLock().lock();
+			try {
+				idleBlocks.use(request.getHash());
+				answer = storage.contains(request.getHash());
+			} finally {
+				sweepLock.readLock().unlock();
+			}
 
 			SimpleAnswer response = SimpleAnswer.newBuilder().setAnswer(answer).build();
                         responseObserver.onNext(response);
                         responseObserver.onCompleted();
 	}
+
+	@Override
+	public void findMissingBlocks(surfstore.SurfStoreBasic.HashList request,
+				io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.HashList> responseObserver) {
+
+			accessLog.log("FindMissingBlocks", "hashes", request.getHashesCount());
+
+			HashList.Builder builder = HashList.newBuilder();
+			sweepLock.readLock().lock();
+			try {
+				idleBlocks.useAll(request.getHashesList());
+				for (String hash : request.getHashesList()) {
+					if (!storage.contains(hash)) {
+						builder.addHashes(hash);
+					}
+				}
+			} finally {
+				sweepLock.readLock().unlock();
+			}
+
+			HashList response = builder.build();
+                        responseObserver.onNext(response);
+                        responseObserver.onCompleted();
+	}
+
+	/*
+	 * Blocks are stored as they arrive. gRPC only asks the client for the
+	 * next message once onNext() returns, so a client can never get more
+	 * than a flow-control window ahead of the storage engine. They are
+	 * synced to disk once, when the stream ends, before it is answered.
+	 */
+	@Override
+	public io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.Block> storeBlocks(
+				final io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.Empty> responseObserver) {
+
+			return new StreamObserver<Block>() {
+				private boolean failed = false;
+
+				@Override
+				public void onNext(Block block) {
+					if (failed) {
+						return;
+					}
+					sweepLock.readLock().lock();
+					try {
+						idleBlocks.use(block.getHash());
+						storage.put(block.getHash(), block.getData());
+					} catch (IllegalArgumentException e) {
+						failed = true;
+						responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage())
+								.asRuntimeException());
+					} catch (IOException e) {
+						failed = true;
+						responseObserver.onError(Status.INTERNAL.withDescription("Cannot store block")
+								.withCause(e).asRuntimeException());
+					} finally {
+						sweepLock.readLock().unlock();
+					}
+				}
+
+				@Override
+				public void onError(Throwable t) {
+					logger.warning("StoreBlocks stream failed: " + Status.fromThrowable(t));
+				}
+
+				@Override
+				public void onCompleted() {
+					if (failed) {
+						return;
+					}
+					try {
+						storage.sync();
+					} catch (IOException e) {
+						responseObserver.onError(Status.INTERNAL.withDescription("Cannot store blocks")
+								.withCause(e).asRuntimeException());
+						return;
+					}
+					responseObserver.onNext(Empty.newBuilder().build());
+					responseObserver.onCompleted();
+				}
+			};
+	}
+
+	/*
+	 * Blocks are only sent while the call is ready, i.e. while the client
+	 * has flow-control window left. When it fills up, sending resumes from
+	 * the onReady handler once the client has read more.
+	 */
+	@Override
+	public void getBlocks(surfstore.SurfStoreBasic.HashList request,
+				io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.Block> responseObserver) {
+
+			accessLog.log("GetBlocks", "hashes", request.getHashesCount());
+
+			final ServerCallStreamObserver<Block> call = (ServerCallStreamObserver<Block>) responseObserver;
+			final Iterator<String> hashes = request.getHashesList().iterator();
+			final boolean stored = request.getAcceptCompressed() && storage instanceof CompressedBlockStorage;
+
+			Runnable sender = new Runnable() {
+				private boolean done = false;
+
+				@Override
+				public void run() {
+					while (!done && call.isReady()) {
+						if (call.isCancelled()) {
+							done = true;
+						} else if (!hashes.hasNext()) {
+							done = true;
+							call.onCompleted();
+						} else {
+							try {
+								call.onNext(stored ? lookupStored(hashes.next()) : lookup(hashes.next()));
+							} catch (IOException e) {
+								done = true;
+								call.onError(Status.INTERNAL.withDescription("Cannot read block")
+										.withCause(e).asRuntimeException());
+							} catch (IllegalArgumentException e) {
+								done = true;
+								call.onError(Status.DATA_LOSS.withDescription(e.getMessage())
+										.withCause(e).asRuntimeException());
+							}
+						}
+					}
+				}
+			};
+			call.setOnReadyHandler(sender);
+			/* the call may already be ready, in which case no onReady event will follow */
+			sender.run();
+	}
+
+	@Override
+	public void rebalance(surfstore.SurfStoreBasic.Empty request,
+				io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.RebalanceResult> responseObserver) {
+
+			RebalanceResult response;
+			try {
+				response = rebalancer.rebalance();
+			} catch (IOException e) {
+				responseObserver.onError(Status.INTERNAL.withDescription("Cannot move blocks")
+						.withCause(e).asRuntimeException());
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				responseObserver.onError(Status.CANCELLED.withCause(e).asRuntimeException());
+				return;
+			} catch (RuntimeException e) {
+				responseObserver.onError(Status.fromThrowable(e).withDescription("Rebalance failed: " + e.getMessage())
+						.asRuntimeException());
+				return;
+			}
+
+                        responseObserver.onNext(response);
+                        responseObserver.onCompleted();
+	}
+
+	/*
+	 * Hashes are sent while the call is ready, like GetBlocks, so a store
+	 * with millions of blocks is not listed into memory all at once.
+	 */
+	@Override
+	public void listIdleBlocks(surfstore.SurfStoreBasic.IdleQuery request,
+				io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.HashList> responseObserver) {
+
+			accessLog.log("ListIdleBlocks", "idle_ms", request.getIdleMs());
+
+			final long idleMs = request.getIdleMs();
+			final ServerCallStreamObserver<HashList> call = (ServerCallStreamObserver<HashList>) responseObserver;
+			final Iterator<String> hashes = storage.hashes();
+			idleBlocks.query(idleMs);
+
+			Runnable sender = new Runnable() {
+				private boolean done = false;
+
+				@Override
+				public void run() {
+					while (!done && call.isReady()) {
+						if (call.isCancelled()) {
+							done = true;
+							continue;
+						}
+						HashList.Builder batch = HashList.newBuilder();
+						while (hashes.hasNext() && batch.getHashesCount() < IDLE_BATCH) {
+							String hash = hashes.next();
+							if (idleBlocks.idle(hash, idleMs)) {
+								batch.addHashes(hash);
+							}
+						}
+						if (batch.getHashesCount() > 0) {
+							call.onNext(batch.build());
+						}
+						if (!hashes.hasNext()) {
+							done = true;
+							call.onCompleted();
+						}
+					}
+				}
+			};
+			call.setOnReadyHandler(sender);
+			sender.run();
+	}
+
+	/*
+	 * Deletes in small batches, each under the sweep lock, so uses of
+	 * other blocks only wait for one batch.
+	 */
+	@Override
+	public void deleteBlocks(surfstore.SurfStoreBasic.DeleteRequest request,
+				io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.DeleteResult> responseObserver) {
+
+			accessLog.log("DeleteBlocks", "hashes", request.getHashesCount());
+
+			List<String> hashes = request.getHashesList();
+			long deleted = 0;
+			try {
+				for (int start = 0; start < hashes.size(); start += DELETE_BATCH) {
+					sweepLock.writeLock().lock();
+					try {
+						for (String hash : hashes.subList(start, Math.min(hashes.size(), start + DELETE_BATCH))) {
+							if (idleBlocks.idle(hash, request.getIdleMs()) && storage.delete(hash)) {
+								deleted++;
+							}
+						}
+					} finally {
+						sweepLock.writeLock().unlock();
+					}
+				}
+			} catch (IOException e) {
+				responseObserver.onError(Status.INTERNAL.withDescription("Cannot delete blocks")
+						.withCause(e).asRuntimeException());
+				return;
+			}
+			if (deleted > 0) {
+				logger.info("Deleted " + deleted + " unreferenced blocks");
+			}
+
+			responseObserver.onNext(DeleteResult.newBuilder().setBlocks(deleted).build());
+			responseObserver.onCompleted();
+	}
+
+	@Override
+	public void getStats(surfstore.SurfStoreBasic.Empty request,
+				io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.StatsReport> responseObserver) {
+
+			responseObserver.onNext(stats.report());
+			responseObserver.onCompleted();
+	}
+
+	/* the stored block with this hash, or a block with an empty hash if there is none */
+	private Block lookup(String hash) throws IOException {
+			ByteString data = storage.get(hash);
+
+			Builder builder = Block.newBuilder();
+			if (data != null) {
+				builder.setData(data);
+				builder.setHash(hash);
+			}
+			return builder.build();
+	}
+
+	/* like lookup(), but leaves the block in the codec it is stored in */
+	private Block lookupStored(String hash) throws IOException {
+			ByteString data = ((CompressedBlockStorage) storage).getStored(hash);
+
+			Builder builder = Block.newBuilder();
+			if (data != null) {
+				builder.setCodec(BlockCodec.codec(data));
+				builder.setData(BlockCodec.body(data));
+				builder.setHash(hash);
+			}
+			return builder.build();
+	}
     }
 }
@@ -0,0 +1,209 @@
+package surfstore;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import surfstore.SurfStoreBasic.Block;
+import surfstore.SurfStoreBasic.Empty;
+import surfstore.SurfStoreBasic.HashList;
+
+/**
+ * Client side of the streaming BlockStore calls, StoreBlocks and
+ * GetBlocks. Both move any number of blocks in a single call and only
+ * produce or consume blocks as fast as gRPC flow control allows.
+ */
+public final class BlockStreams {
+
+    /* hashes per GetBlocks request; keeps requests far below the message size limit */
+    public static final int HASHES_PER_REQUEST = 8192;
+
+    private BlockStreams() {
+    }
+
+    /**
+     * Upload blocks over one StoreBlocks call and wait until the server
+     * has stored all of them. Blocks are pulled from the iterator only
+     * while the call has flow-control window left, so the iterator can
+     * read them lazily from disk without the client buffering a file.
+     */
+    public static void storeBlocks(BlockStoreGrpc.BlockStoreStub stub, final Iterator<Block> blocks) {
+        final SettableFuture<Empty> result = SettableFuture.create();
+
+        stub.storeBlocks(new ClientResponseObserver<Block, Empty>() {
+            @Override
+            public void beforeStart(final ClientCallStreamObserver<Block> call) {
+                call.setOnReadyHandler(new Runnable() {
+                    private boolean done = false;
+
+                    @Override
+                    public void run() {
+                        while (!done && call.isReady()) {
+                            if (!blocks.hasNext()) {
+                                done = true;
+                                call.onCompleted();
+                            } else {
+                                try {
+                                    call.onNext(blocks.next());
+                                } catch (RuntimeException e) {
+                                    done = true;
+                                    call.cancel("Cannot produce block", e);
+                                }
+                            }
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onNext(Empty response) {
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                result.setException(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                result.set(Empty.getDefaultInstance());
+            }
+        });
+
+        try {
+            result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Status.CANCELLED.withCause(e).asRuntimeException();
+        } catch (ExecutionException e) {
+            throw Status.fromThrowable(e.getCause()).asRuntimeException();
+        }
+    }
+
+    /**
+     * Download blocks with GetBlocks, one call per HASHES_PER_REQUEST
+     * hashes. Blocks come back in the order of the hash list; the next
+     * call is only made once the previous one has been read. The server
+     * only sends as far ahead as the caller has read.
+     *
+     * Blocks a server stores compressed travel compressed and are
+     * decompressed here, so callers always see the raw data.
+     */
+    public static Iterator<Block> getBlocks(final BlockStoreGrpc.BlockStoreBlockingStub stub,
+                                            final List<String> hashes) {
+        return new Iterator<Block>() {
+            private int requested = 0;
+            private Iterator<Block> batch = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!batch.hasNext() && requested < hashes.size()) {
+                    int end = Math.min(requested + HASHES_PER_REQUEST, hashes.size());
+                    batch = stub.getBlocks(HashList.newBuilder()
+                            .addAllHashes(hashes.subList(requested, end))
+                            .setAcceptCompressed(true)
+                            .build());
+                    requested = end;
+                }
+                return batch.hasNext();
+            }
+
+            @Override
+            public Block next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return decoded(batch.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /* the block with its data decompressed, if it was sent compressed */
+    private static Block decoded(Block block) {
+        if (block.getCodec() == Block.Codec.RAW) {
+            return block;
+        }
+        return Block.newBuilder()
+                .setHash(block.getHash())
+                .setData(BlockCodec.decode(block.getCodec(), block.getData()))
+                .build();
+    }
+
+    /**
+     * Download blocks from a sharded BlockStore. The hash list is taken
+     * HASHES_PER_REQUEST at a time; for each window one GetBlocks call is
+     * made to every server owning some of its hashes, and the blocks are
+     * handed out in the order of the hash list by reading from the owner's
+     * call. All servers stream at once, each only as far ahead as the
+     * caller has read.
+     *
+     * A block its owner does not have is looked up on the other servers,
+     * which is where it is while a rebalance is moving it. If no server has
+     * it, a block with an empty hash is returned, as with a single server.
+     */
+    public static Iterator<Block> getBlocks(final BlockCluster cluster, final List<String> hashes) {
+        return new Iterator<Block>() {
+            private int requested = 0;
+            private int windowEnd = 0;
+            private Map<Integer, Iterator<Block>> calls = Collections.emptyMap();
+
+            @Override
+            public boolean hasNext() {
+                if (requested == windowEnd && requested < hashes.size()) {
+                    windowEnd = Math.min(requested + HASHES_PER_REQUEST, hashes.size());
+                    calls = new HashMap<Integer, Iterator<Block>>();
+                    for (Map.Entry<Integer, List<String>> share
+                            : cluster.partition(hashes.subList(requested, windowEnd)).entrySet()) {
+                        calls.put(share.getKey(), cluster.blockingStub(share.getKey())
+                                .getBlocks(HashList.newBuilder()
+                                        .addAllHashes(share.getValue())
+                                        .setAcceptCompressed(true)
+                                        .build()));
+                    }
+                }
+                return requested < windowEnd;
+            }
+
+            @Override
+            public Block next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String hash = hashes.get(requested++);
+                int owner = cluster.ring().nodeFor(hash);
+                Block block = decoded(calls.get(owner).next());
+                if (block.getHash().isEmpty()) {
+                    for (int node : cluster.nodes()) {
+                        if (node != owner) {
+                            Block elsewhere = cluster.blockingStub(node)
+                                    .getBlock(Block.newBuilder().setHash(hash).build());
+                            if (!elsewhere.getHash().isEmpty()) {
+                                return elsewhere;
+                            }
+                        }
+                    }
+                }
+                return block;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
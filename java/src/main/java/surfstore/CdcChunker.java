@@ -0,0 +1,124 @@
+package surfstore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Content-defined chunking in the style of FastCDC.
+ *
+ * A gear hash is rolled over the file and a block ends wherever the hash
+ * matches a mask, so block boundaries depend on the bytes around them
+ * rather than on their offset. Inserting or deleting bytes only changes
+ * the blocks around the edit; the blocks after it are cut at the same
+ * places as before and keep their hashes.
+ *
+ * Blocks are never shorter than the minimum (except the last one) or
+ * longer than the maximum. Between the minimum and the average size a
+ * stricter mask is used than after it, which keeps most block sizes
+ * close to the average.
+ */
+public final class CdcChunker implements Chunker {
+
+    /* every client must use the same gear table, so it comes from a fixed seed */
+    private static final long GEAR_SEED = 0x5375726653746f72L;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(GEAR_SEED);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long strictMask;
+    private final long looseMask;
+
+    public CdcChunker(int minSize, int avgSize, int maxSize) {
+        if (minSize <= 0 || minSize > avgSize || avgSize > maxSize) {
+            throw new IllegalArgumentException("Chunk sizes must satisfy 0 < min <= avg <= max");
+        }
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+
+        /* use the high bits of the hash; they depend on the last 64 bytes, not just the last few */
+        int bits = 31 - Integer.numberOfLeadingZeros(avgSize);
+        this.strictMask = mask(bits + 1);
+        this.looseMask = mask(Math.max(bits - 1, 1));
+    }
+
+    private static long mask(int bits) {
+        return -1L << (64 - bits);
+    }
+
+    @Override
+    public List<Chunk> split(FileChannel channel) throws IOException {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(READ_BUFFER_SIZE, 2 * maxSize));
+        long bufferOffset = 0;
+        long position = 0;
+        boolean eof = false;
+
+        while (true) {
+            /* keep at least one maximum-size block in the buffer until the end of the file */
+            while (!eof && buffer.position() < buffer.capacity()) {
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    position += n;
+                }
+            }
+            buffer.flip();
+            if (!buffer.hasRemaining()) {
+                break;
+            }
+
+            while (buffer.remaining() >= maxSize || (eof && buffer.hasRemaining())) {
+                int length = cut(buffer.array(), buffer.position(), buffer.remaining());
+                chunks.add(new Chunk(bufferOffset, length));
+                bufferOffset += length;
+                buffer.position(buffer.position() + length);
+            }
+            buffer.compact();
+            if (eof && buffer.position() == 0) {
+                break;
+            }
+        }
+        return chunks;
+    }
+
+    /* length of the block starting at data[start], given that length bytes are available */
+    private int cut(byte[] data, int start, int length) {
+        if (length <= minSize) {
+            return length;
+        }
+        int normal = Math.min(avgSize, length);
+        int end = Math.min(maxSize, length);
+        long hash = 0;
+        int i = minSize;
+
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[start + i] & 0xff];
+            if ((hash & strictMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[start + i] & 0xff];
+            if ((hash & looseMask) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+}
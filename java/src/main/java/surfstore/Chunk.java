@@ -0,0 +1,14 @@
+package surfstore;
+
+/**
+ * A block-sized piece of a local file: where it starts and how long it is.
+ */
+public final class Chunk {
+    public final long offset;
+    public final int length;
+
+    public Chunk(long offset, int length) {
+        this.offset = offset;
+        this.length = length;
+    }
+}
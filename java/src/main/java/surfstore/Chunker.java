@@ -0,0 +1,16 @@
+package surfstore;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Decides where a file is cut into blocks.
+ */
+public interface Chunker {
+
+    /**
+     * Split a file into consecutive chunks that together cover all of it.
+     */
+    List<Chunk> split(FileChannel channel) throws IOException;
+}
@@ -1,23 +1,39 @@
 package surfstore;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import com.google.common.base.Function;
 import com.google.protobuf.ByteString;
 
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.StatusRuntimeException;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
+import net.sourceforge.argparse4j.inf.Subparsers;
 import surfstore.SurfStoreBasic.Block;
 import surfstore.SurfStoreBasic.Block.Builder;
+import surfstore.SurfStoreBasic.DeleteResult;
 import surfstore.SurfStoreBasic.Empty;
 import surfstore.SurfStoreBasic.FileInfo;
+import surfstore.SurfStoreBasic.FileInfoList;
+import surfstore.SurfStoreBasic.ListRequest;
+import surfstore.SurfStoreBasic.RebalanceResult;
 import surfstore.SurfStoreBasic.WriteResult;
 import surfstore.SurfStoreBasic.WriteResult.Result;
 
@@ -25,29 +41,55 @@ import surfstore.SurfStoreBasic.WriteResult.Result;
 public final class Client {
     private static final Logger logger = Logger.getLogger(Client.class.getName());
 
+    public static final int BLOCK_SIZE = 4096;
+
     private final ManagedChannel metadataChannel;
     private final MetadataStoreGrpc.MetadataStoreBlockingStub metadataStub;
 
-    private final ManagedChannel blockChannel;
-    private final BlockStoreGrpc.BlockStoreBlockingStub blockStub;
+    /* one stub per metadata server; reads go round-robin across them */
+    private final List<ManagedChannel> readChannels;
+    private final List<MetadataStoreGrpc.MetadataStoreBlockingStub> readStubs;
+    private final AtomicInteger nextRead;
+
+    /* every block server, and the ring that says which one holds a block */
+    private final BlockCluster blockCluster;
 
     private final ConfigReader config;
 
-    public Client(ConfigReader config) {
-        this.metadataChannel = ManagedChannelBuilder.forAddress("127.0.0.1", config.getMetadataPort(1))
+    /* local copies of blocks, or null to always fetch them */
+    private final BlockCache cache;
+
+    public Client(ConfigReader config, BlockCache cache) {
+        this.metadataChannel = ManagedChannelBuilder.forAddress("127.0.0.1", config.getMetadataPort(config.getLeaderNum()))
                 .usePlaintext(true).build();
         this.metadataStub = MetadataStoreGrpc.newBlockingStub(metadataChannel);
 
-        this.blockChannel = ManagedChannelBuilder.forAddress("127.0.0.1", config.getBlockPort())
-                .usePlaintext(true).build();
-        this.blockStub = BlockStoreGrpc.newBlockingStub(blockChannel);
+        this.readChannels = new ArrayList<ManagedChannel>();
+        this.readStubs = new ArrayList<MetadataStoreGrpc.MetadataStoreBlockingStub>();
+        for (int id = 1; id <= config.getNumMetadataServers(); id++) {
+            ManagedChannel channel = (id == config.getLeaderNum()) ? metadataChannel
+                    : ManagedChannelBuilder.forAddress("127.0.0.1", config.getMetadataPort(id))
+                            .usePlaintext(true).build();
+            readChannels.add(channel);
+            readStubs.add(MetadataStoreGrpc.newBlockingStub(channel));
+        }
+        /* start at a random server, so short-lived clients spread out too */
+        this.nextRead = new AtomicInteger(new Random().nextInt(readStubs.size()));
+
+        this.blockCluster = new BlockCluster(config);
 
         this.config = config;
+        this.cache = cache;
     }
 
-    public void shutdown() throws InterruptedException {
-        metadataChannel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
-        blockChannel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+    public void shutdown() throws InterruptedException, IOException {
+        for (ManagedChannel channel : readChannels) {
+            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        }
+        blockCluster.shutdown();
+        if (cache != null) {
+            cache.close();
+        }
     }
     
     private void ensure(boolean b) {
@@ -69,10 +111,208 @@ public final class Client {
 
 	return builder.build(); // turns the Builder into a Block
     }
+
+    /* stub for the block server that holds this block */
+    private BlockStoreGrpc.BlockStoreBlockingStub blockStub(Block block) {
+        return blockCluster.blockingStub(block.getHash());
+    }
+
+    /* a file exists if it has been written and its last write was not a delete */
+    private static boolean exists(FileInfo info) {
+        return info.getVersion() > 0
+                && !(info.getBlocklistCount() == 1 && info.getBlocklist(0).equals("0"));
+    }
+
+    /*
+     * Read a file's metadata from the next server in turn. If that server
+     * cannot answer, ask the leader.
+     */
+    private FileInfo readFile(String filename) {
+        FileInfo request = FileInfo.newBuilder().setFilename(filename).build();
+        int server = Math.abs(nextRead.getAndIncrement() % readStubs.size());
+        try {
+            return readStubs.get(server).readFile(request);
+        } catch (StatusRuntimeException e) {
+            if (readChannels.get(server) == metadataChannel) {
+                throw e;
+            }
+            return metadataStub.readFile(request);
+        }
+    }
+
+    /*
+     * The files a ReadFiles or ListFiles call streams back, asked of the
+     * next server in turn, or of the leader if that server cannot answer.
+     */
+    private List<FileInfo> readBatches(Function<MetadataStoreGrpc.MetadataStoreBlockingStub, Iterator<FileInfoList>> call) {
+        int server = Math.abs(nextRead.getAndIncrement() % readStubs.size());
+        try {
+            return collect(call.apply(readStubs.get(server)));
+        } catch (StatusRuntimeException e) {
+            if (readChannels.get(server) == metadataChannel) {
+                throw e;
+            }
+            return collect(call.apply(metadataStub));
+        }
+    }
+
+    private static List<FileInfo> collect(Iterator<FileInfoList> batches) {
+        List<FileInfo> files = new ArrayList<FileInfo>();
+        while (batches.hasNext()) {
+            files.addAll(batches.next().getFilesList());
+        }
+        return files;
+    }
+
+    private void upload(File file, Chunker chunker, int uploadStreams) throws IOException {
+        if (!file.isFile()) {
+            System.out.println("Not Found");
+            return;
+        }
+
+        ExecutorService hashPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        ExecutorService uploadPool = Executors.newFixedThreadPool(uploadStreams);
+        try {
+            Uploader uploader = new Uploader(metadataStub, blockCluster, chunker, hashPool, uploadPool, cache);
+            WriteResult result = uploader.upload(file.getName(), file);
+            System.out.println(result.getResult() == Result.OK ? "OK" : result.getResult().name());
+        } finally {
+            hashPool.shutdownNow();
+            uploadPool.shutdownNow();
+        }
+    }
+
+    /*
+     * With a cache, the blocks of the local copy being replaced are added
+     * to it first, so only blocks that changed are fetched.
+     */
+    private void download(String filename, File dir, Chunker chunker, int downloadStreams) throws IOException {
+        FileInfo info = readFile(filename);
+        if (!exists(info)) {
+            System.out.println("Not Found");
+            return;
+        }
+
+        File target = new File(dir, filename);
+        if (cache != null && target.isFile()) {
+            ExecutorService hashPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            try {
+                cache.putFile(target, chunker, hashPool);
+            } finally {
+                hashPool.shutdownNow();
+            }
+        }
+
+        ExecutorService fetchPool = Executors.newFixedThreadPool(downloadStreams);
+        try {
+            new Downloader(blockCluster, fetchPool, downloadStreams, cache).download(info.getBlocklistList(), target);
+        } finally {
+            fetchPool.shutdownNow();
+        }
+        System.out.println("OK");
+    }
+
+    private void delete(String filename) {
+        FileInfo info = readFile(filename);
+        if (!exists(info)) {
+            System.out.println("Not Found");
+            return;
+        }
+
+        FileInfo request = FileInfo.newBuilder()
+                .setFilename(filename)
+                .setVersion(info.getVersion() + 1)
+                .build();
+        WriteResult result = metadataStub.deleteFile(request);
+        System.out.println(result.getResult() == Result.OK ? "OK" : result.getResult().name());
+    }
+
+    /* print the version of each file, reading them all in one call if there are several */
+    private void getVersion(List<String> filenames) {
+        if (filenames.size() == 1) {
+            System.out.println(readFile(filenames.get(0)).getVersion());
+            return;
+        }
+        final FileInfoList.Builder request = FileInfoList.newBuilder();
+        for (String filename : filenames) {
+            request.addFiles(FileInfo.newBuilder().setFilename(filename));
+        }
+        List<FileInfo> files = readBatches(new Function<MetadataStoreGrpc.MetadataStoreBlockingStub, Iterator<FileInfoList>>() {
+            @Override
+            public Iterator<FileInfoList> apply(MetadataStoreGrpc.MetadataStoreBlockingStub stub) {
+                return stub.readFiles(request.build());
+            }
+        });
+        for (FileInfo info : files) {
+            System.out.println(info.getVersion());
+        }
+    }
+
+    /* print the name and version of every file matching the filters */
+    private void list(String prefix, int sinceVersion) {
+        final ListRequest request = ListRequest.newBuilder().setPrefix(prefix).setSinceVersion(sinceVersion).build();
+        List<FileInfo> files = readBatches(new Function<MetadataStoreGrpc.MetadataStoreBlockingStub, Iterator<FileInfoList>>() {
+            @Override
+            public Iterator<FileInfoList> apply(MetadataStoreGrpc.MetadataStoreBlockingStub stub) {
+                return stub.listFiles(request);
+            }
+        });
+        for (FileInfo info : files) {
+            System.out.println(info.getFilename() + " " + info.getVersion() + (exists(info) ? "" : " deleted"));
+        }
+    }
+
+    private void load(Namespace c_args) throws IOException, InterruptedException {
+        ExecutorService hashPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        ExecutorService uploadPool = Executors.newFixedThreadPool(c_args.getInt("concurrency") * 2);
+        try {
+            Uploader uploader = new Uploader(metadataStub, blockCluster, new FixedChunker(BLOCK_SIZE),
+                    hashPool, uploadPool);
+            LoadGenerator generator = new LoadGenerator(metadataStub, readStubs, blockCluster, uploader,
+                    c_args.getString("mix"), c_args.getLong("file_size"), c_args.getString("size_dist"),
+                    c_args.getDouble("dedup"));
+            int duration = c_args.getInt("duration");
+            Stats stats = generator.run(c_args.getInt("files"), duration, c_args.getInt("concurrency"),
+                    c_args.getDouble("rate"));
+            System.out.print(LoadGenerator.format(stats, duration));
+        } finally {
+            hashPool.shutdownNow();
+            uploadPool.shutdownNow();
+        }
+    }
+
+    /* print the stats of every server */
+    private void stats() {
+        for (int id = 1; id <= readStubs.size(); id++) {
+            System.out.println("metadata" + id + ":");
+            System.out.print(Stats.format(readStubs.get(id - 1).getStats(Empty.newBuilder().build())));
+        }
+        for (int node : blockCluster.nodes()) {
+            System.out.println("block" + node + ":");
+            System.out.print(Stats.format(blockCluster.blockingStub(node).getStats(Empty.newBuilder().build())));
+        }
+    }
+
+    /* ask every block server to hand over the blocks it no longer owns */
+    private void rebalance() {
+        for (int node : blockCluster.nodes()) {
+            RebalanceResult result = blockCluster.blockingStub(node).rebalance(Empty.newBuilder().build());
+            System.out.println("block" + node + ": moved " + result.getBlocks() + " blocks, "
+                    + result.getBytes() + " bytes");
+        }
+    }
+
+    /* run a garbage collection round on the leader */
+    private void collectGarbage() {
+        DeleteResult result = metadataStub.collectGarbage(Empty.newBuilder().build());
+        System.out.println("Deleted " + result.getBlocks() + " unreferenced blocks");
+    }
+
 ///////////////////////////////////////////////////////////////////////////////////////////////////////
     private void go() {
 
      //test_Block();
+     //test_Block_streams();
      //test_md_centralized_filenotfound();
      test_md_centralized_missingblocks();
 
@@ -81,21 +321,23 @@ public final class Client {
 
     private void test_Block() {
         
-        blockStub.ping(Empty.newBuilder().build());
-        logger.info("Successfully pinged the Blockstore server");
+        for (int node : blockCluster.nodes()) {
+            blockCluster.blockingStub(node).ping(Empty.newBuilder().build());
+        }
+        logger.info("Successfully pinged the Blockstore servers");
 		Block b1 = stringToBlock("block_01");
 		Block b2 = stringToBlock("block_02");
 
-		ensure(blockStub.hasBlock(b1).getAnswer() == false);
-		ensure(blockStub.hasBlock(b2).getAnswer() == false);
+		ensure(blockStub(b1).hasBlock(b1).getAnswer() == false);
+		ensure(blockStub(b2).hasBlock(b2).getAnswer() == false);
 		
-		blockStub.storeBlock(b1);
-		ensure(blockStub.hasBlock(b1).getAnswer() == true);
+		blockStub(b1).storeBlock(b1);
+		ensure(blockStub(b1).hasBlock(b1).getAnswer() == true);
 
-		blockStub.storeBlock(b2);
-		ensure(blockStub.hasBlock(b2).getAnswer() == true);
+		blockStub(b2).storeBlock(b2);
+		ensure(blockStub(b2).hasBlock(b2).getAnswer() == true);
 
-		Block b1prime = blockStub.getBlock(b1);
+		Block b1prime = blockStub(b1).getBlock(b1);
 		ensure(b1prime.getHash().equals(b1.getHash()));
 		ensure(b1.getData().equals(b1.getData()));
 
@@ -103,6 +345,44 @@ public final class Client {
 
     }
 
+    private void test_Block_streams() {
+
+        logger.info("Running test test_Block_streams");
+
+		List<Block> blocks = new ArrayList<Block>();
+		List<String> hashes = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			Block b = stringToBlock("stream_block_" + i);
+			blocks.add(b);
+			hashes.add(b.getHash());
+		}
+
+		Map<Integer, List<String>> shares = blockCluster.partition(hashes);
+		for (Map.Entry<Integer, List<String>> share : shares.entrySet()) {
+			List<Block> owned = new ArrayList<Block>();
+			for (Block b : blocks) {
+				if (share.getValue().contains(b.getHash())) {
+					owned.add(b);
+				}
+			}
+			BlockStreams.storeBlocks(blockCluster.asyncStub(share.getKey()), owned.iterator());
+		}
+		ensure(blockStub(blocks.get(0)).hasBlock(blocks.get(0)).getAnswer() == true);
+		ensure(blockStub(blocks.get(999)).hasBlock(blocks.get(999)).getAnswer() == true);
+
+		hashes.add(stringToBlock("stream_block_missing").getHash());
+		Iterator<Block> received = BlockStreams.getBlocks(blockCluster, hashes);
+		for (Block b : blocks) {
+			Block bprime = received.next();
+			ensure(bprime.getHash().equals(b.getHash()));
+			ensure(bprime.getData().equals(b.getData()));
+		}
+		ensure(received.next().getHash().isEmpty());
+		ensure(received.hasNext() == false);
+
+		logger.info("test_Block_streams test passed... yay!");
+    }
+
 
     private void test_md_centralized_filenotfound() {
 		
@@ -153,17 +433,17 @@ public final class Client {
 		ensure(catresult.getResult().equals(Result.MISSING_BLOCKS));
 		ensure(catresult.getMissingBlocksCount() == 3);
 		
-		blockStub.storeBlock(cat_b0);
+		blockStub(cat_b0).storeBlock(cat_b0);
 		catresult = metadataStub.modifyFile(catreq);
 		ensure(catresult.getResult().equals(Result.MISSING_BLOCKS));
 		ensure(catresult.getMissingBlocksCount() == 2);
 		
-		blockStub.storeBlock(cat_b1);
+		blockStub(cat_b1).storeBlock(cat_b1);
 		catresult = metadataStub.modifyFile(catreq);
 		ensure(catresult.getResult().equals(Result.MISSING_BLOCKS));
 		ensure(catresult.getMissingBlocksCount() == 1);
 		
-		blockStub.storeBlock(cat_b2);
+		blockStub(cat_b2).storeBlock(cat_b2);
 		catresult = metadataStub.modifyFile(catreq);
 		ensure(catresult.getResult().equals(Result.OK));
 		
@@ -195,7 +475,70 @@ public final class Client {
                 .description("Client for SurfStore");
         parser.addArgument("config_file").type(String.class)
                 .help("Path to configuration file");
-        
+        parser.addArgument("--cache-dir").type(String.class)
+                .setDefault(new File(System.getProperty("user.home"), ".surfstore/cache").getPath())
+                .help("Directory of the local block cache");
+        parser.addArgument("--cache-size").type(Long.class).setDefault(1024L)
+                .help("Megabytes of blocks the cache keeps; 0 turns it off");
+
+        Subparsers commands = parser.addSubparsers().dest("command").title("commands");
+
+        Subparser upload = commands.addParser("upload").help("Upload a local file");
+        upload.addArgument("file").type(String.class)
+                .help("Path of the file to upload");
+        upload.addArgument("--upload-streams").type(Integer.class).setDefault(4)
+                .help("Maximum number of concurrent block upload streams");
+        addChunkingArguments(upload);
+
+        Subparser download = commands.addParser("download").help("Download a file into a directory");
+        download.addArgument("filename").type(String.class)
+                .help("Name of the file to download");
+        download.addArgument("dir").type(String.class)
+                .help("Directory to write the file to");
+        download.addArgument("--download-streams").type(Integer.class).setDefault(4)
+                .help("Maximum number of block ranges fetched at once");
+        addChunkingArguments(download);
+
+        Subparser delete = commands.addParser("delete").help("Delete a file");
+        delete.addArgument("filename").type(String.class)
+                .help("Name of the file to delete");
+
+        Subparser getversion = commands.addParser("getversion").help("Print the version of a file");
+        getversion.addArgument("filename").type(String.class).nargs("+")
+                .help("Name of the file; the versions of several files are read in one call");
+
+        Subparser list = commands.addParser("list").help("Print the name and version of every file");
+        list.addArgument("--prefix").type(String.class).setDefault("")
+                .help("Only list files whose name starts with this");
+        list.addArgument("--since").type(Integer.class).setDefault(0)
+                .help("Only list files whose version is greater than this");
+
+        commands.addParser("rebalance").help("Move blocks to the block servers that own them after adding one");
+
+        commands.addParser("gc").help("Delete the blocks no file refers to now, instead of at the next scheduled round");
+
+        commands.addParser("stats").help("Print call counts, latencies and gauges of every server");
+
+        Subparser load = commands.addParser("load").help("Run a generated workload and report throughput and latency");
+        load.addArgument("--mix").setDefault("read-heavy")
+                .help("read-heavy, write-heavy, churn, or weights such as read:70,write:20,create:5,delete:5");
+        load.addArgument("--duration").type(Integer.class).setDefault(30)
+                .help("Seconds to run the workload for");
+        load.addArgument("--concurrency").type(Integer.class).setDefault(8)
+                .help("Operations in progress at once");
+        load.addArgument("--rate").type(Double.class).setDefault(0.0)
+                .help("Operations started per second; 0 starts the next as soon as one finishes");
+        load.addArgument("--files").type(Integer.class).setDefault(20)
+                .help("Files created before the workload starts");
+        load.addArgument("--file-size").type(Long.class).setDefault(262144L)
+                .help("Mean size of generated files in bytes");
+        load.addArgument("--size-dist").choices("fixed", "uniform", "exponential").setDefault("exponential")
+                .help("Distribution of generated file sizes");
+        load.addArgument("--dedup").type(Double.class).setDefault(0.0)
+                .help("Fraction of generated blocks that repeat blocks already stored");
+
+        commands.addParser("test").help("Run the built-in tests against the servers");
+
         Namespace res = null;
         try {
             res = parser.parseArgs(args);
@@ -205,6 +548,25 @@ public final class Client {
         return res;
     }
 
+    /* how local files are cut into blocks: when uploading, and when adding the copy a download replaces to the cache */
+    private static void addChunkingArguments(Subparser command) {
+        command.addArgument("--chunking").choices("fixed", "cdc").setDefault("fixed")
+                .help("Cut the file into fixed-size blocks, or at content-defined boundaries");
+        command.addArgument("--min-chunk").type(Integer.class).setDefault(2048)
+                .help("Minimum block size for content-defined chunking");
+        command.addArgument("--avg-chunk").type(Integer.class).setDefault(8192)
+                .help("Average block size for content-defined chunking");
+        command.addArgument("--max-chunk").type(Integer.class).setDefault(65536)
+                .help("Maximum block size for content-defined chunking");
+    }
+
+    private static Chunker chunker(Namespace c_args) {
+        if (c_args.getString("chunking").equals("cdc")) {
+            return new CdcChunker(c_args.getInt("min_chunk"), c_args.getInt("avg_chunk"), c_args.getInt("max_chunk"));
+        }
+        return new FixedChunker(BLOCK_SIZE);
+    }
+
     public static void main(String[] args) throws Exception {
         Namespace c_args = parseArgs(args);
         if (c_args == null){
@@ -214,10 +576,37 @@ public final class Client {
         File configf = new File(c_args.getString("config_file"));
         ConfigReader config = new ConfigReader(configf);
 
-        Client client = new Client(config);
+        String command = c_args.getString("command");
+        long cacheSize = c_args.getLong("cache_size") << 20;
+        BlockCache cache = null;
+        if (cacheSize > 0 && (command.equals("upload") || command.equals("download"))) {
+            cache = BlockCache.open(new File(c_args.getString("cache_dir")), cacheSize);
+        }
+        Client client = new Client(config, cache);
         
         try {
-        	client.go();
+            if (command.equals("upload")) {
+                client.upload(new File(c_args.getString("file")), chunker(c_args), c_args.getInt("upload_streams"));
+            } else if (command.equals("download")) {
+                client.download(c_args.getString("filename"), new File(c_args.getString("dir")), chunker(c_args),
+                        c_args.getInt("download_streams"));
+            } else if (command.equals("delete")) {
+                client.delete(c_args.getString("filename"));
+            } else if (command.equals("getversion")) {
+                client.getVersion(c_args.<String>getList("filename"));
+            } else if (command.equals("list")) {
+                client.list(c_args.getString("prefix"), c_args.getInt("since"));
+            } else if (command.equals("rebalance")) {
+                client.rebalance();
+            } else if (command.equals("gc")) {
+                client.collectGarbage();
+            } else if (command.equals("stats")) {
+                client.stats();
+            } else if (command.equals("load")) {
+                client.load(c_args);
+            } else {
+                client.go();
+            }
         } finally {
             client.shutdown();
         }
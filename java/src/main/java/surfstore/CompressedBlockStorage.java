@@ -0,0 +1,94 @@
+package surfstore;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Compresses blocks on their way into another BlockStorage.
+ *
+ * Every block is stored in BlockCodec form, deflated or raw as it
+ * decides per block, so the underlying engine holds fewer bytes and
+ * reads and writes less. get() decompresses; getStored() returns the
+ * stored form, which the BlockStore sends as is to clients that can
+ * decode it.
+ *
+ * Blocks written without compression have no codec tag, so the
+ * BlockStore records in its data directory whether it compresses, and
+ * refuses to open the directory with the other setting.
+ */
+public final class CompressedBlockStorage implements BlockStorage {
+
+    private final BlockStorage stored;
+
+    public CompressedBlockStorage(BlockStorage stored) {
+        this.stored = stored;
+    }
+
+    @Override
+    public void put(String hash, ByteString data) throws IOException {
+        if (stored.contains(hash)) {
+            return;
+        }
+        stored.put(hash, BlockCodec.encode(data));
+    }
+
+    @Override
+    public void sync() throws IOException {
+        stored.sync();
+    }
+
+    @Override
+    public ByteString get(String hash) throws IOException {
+        ByteString block = stored.get(hash);
+        return (block == null) ? null : BlockCodec.decode(block);
+    }
+
+    /**
+     * The block with this hash in BlockCodec form, or null if it is not
+     * stored.
+     */
+    public ByteString getStored(String hash) throws IOException {
+        return stored.get(hash);
+    }
+
+    @Override
+    public boolean contains(String hash) {
+        return stored.contains(hash);
+    }
+
+    @Override
+    public boolean delete(String hash) throws IOException {
+        return stored.delete(hash);
+    }
+
+    @Override
+    public Iterator<String> hashes() {
+        return stored.hashes();
+    }
+
+    @Override
+    public long count() {
+        return stored.count();
+    }
+
+    /**
+     * Bytes the blocks take up in the underlying storage, after
+     * compression.
+     */
+    @Override
+    public long bytes() {
+        return stored.bytes();
+    }
+
+    @Override
+    public long compact() throws IOException {
+        return stored.compact();
+    }
+
+    @Override
+    public void close() throws IOException {
+        stored.close();
+    }
+}
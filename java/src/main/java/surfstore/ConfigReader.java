@@ -11,7 +11,7 @@ public final class ConfigReader {
     private static final String numMetadataMatchStr = "M(:|=)\\s*(?<numMetadata>\\d+)";
     private static final String leaderNumMatchStr = "L(:|=)\\s*(?<leaderNum>\\d+)";
     private static final String metadataInstMatchStr = "metadata(?<metadataId>\\d+)(:|=)\\s*(?<metadataPort>\\d+)";
-    private static final String blockInstMatchStr = "block(:|=)\\s*(?<blockPort>\\d+)";
+    private static final String blockInstMatchStr = "block(?<blockId>\\d*)(:|=)\\s*(?<blockPort>\\d+)";
     
     private static final Pattern configMatcher = Pattern.compile(
             String.format("((%s)|(%s)|(%s)|(%s))\\s*",
@@ -27,6 +27,7 @@ public final class ConfigReader {
     public Integer numMetadataServers;
     public HashMap<Integer, Integer> metadataPorts;
     public Integer blockPort;
+    public HashMap<Integer, Integer> blockPorts;
     public Integer leaderNum;
     
 	public ConfigReader(File configFile) throws FileNotFoundException {
@@ -51,6 +52,7 @@ public final class ConfigReader {
 
 	protected void parseConfigFile() {
         metadataPorts = new HashMap<Integer, Integer>();
+        blockPorts = new HashMap<Integer, Integer>();
 
         for(String line : config.split("\\r?\\n")) {
             Matcher result = configMatcher.matcher(line);
@@ -65,13 +67,16 @@ public final class ConfigReader {
                 metadataPorts.put(Integer.parseInt(result.group("metadataId")),
                                   Integer.parseInt(result.group("metadataPort")));
             } else if (result.group("blockPort") != null) {
-                blockPort = Integer.parseInt(result.group("blockPort"));
+                /* a plain "block:" line is block server 1 */
+                String blockId = result.group("blockId");
+                blockPorts.put(blockId.isEmpty() ? 1 : Integer.parseInt(blockId),
+                               Integer.parseInt(result.group("blockPort")));
             } else{
                 System.err.println("ConfigReader: Invalid line:\n" + line);
             }
         }
 
-        if (numMetadataServers == null || blockPort == null || leaderNum == null) {
+        if (numMetadataServers == null || blockPorts.isEmpty() || leaderNum == null) {
             throw new RuntimeException("Config file is missing one or more required lines!");
         }
 
@@ -79,6 +84,12 @@ public final class ConfigReader {
             if (!metadataPorts.containsKey(i))
                 throw new RuntimeException("Must set port for metadata" + i);
         }
+
+        for(int i = 1; i <= blockPorts.size(); i++){
+            if (!blockPorts.containsKey(i))
+                throw new RuntimeException("Must set port for block" + i);
+        }
+        blockPort = blockPorts.get(1);
     }
 
     public int getNumMetadataServers() {
@@ -92,6 +103,14 @@ public final class ConfigReader {
     public int getBlockPort() {
         return blockPort;
     }
+
+    public int getNumBlockServers() {
+        return blockPorts.size();
+    }
+
+    public int getBlockPort(int serverId) {
+        return blockPorts.get(serverId);
+    }
     
     public int getLeaderNum() {
     	return leaderNum;
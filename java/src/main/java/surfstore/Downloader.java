@@ -0,0 +1,248 @@
+package surfstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.Status;
+import surfstore.SurfStoreBasic.Block;
+
+/**
+ * Downloads one file from SurfStore.
+ *
+ * The blocks to fetch (each distinct hash not in the BlockCache) are
+ * split into ranges of FETCH_BATCH hashes, and up to window ranges are
+ * fetched at once on the fetch pool, each with its own GetBlocks calls.
+ * Blocks are written in blocklist order, since a block's offset is only
+ * known once the sizes of all blocks before it are, but a range that
+ * arrives early waits in memory instead of holding up the others, so
+ * the download is bound by bandwidth rather than by round trips. At most
+ * window ranges are held at once.
+ *
+ * Blocks are written with positional FileChannel writes straight from
+ * the received buffers into a temporary file next to the target, which
+ * replaces the target atomically once it is complete; a failed download
+ * leaves the old file as it was. A block repeated in the blocklist is
+ * copied from where it was first written.
+ */
+public final class Downloader {
+
+    /* hashes fetched per task */
+    private static final int FETCH_BATCH = 1024;
+
+    private final BlockCluster blocks;
+    private final ExecutorService fetchPool;
+    private final int window;
+    private final BlockCache cache;
+
+    /**
+     * @param window how many ranges may be fetched or waiting to be
+     *               written at once; the fetch pool should have at least
+     *               this many threads
+     * @param cache  where to look for blocks and add fetched ones, or null
+     */
+    public Downloader(BlockCluster blocks, ExecutorService fetchPool, int window, BlockCache cache) {
+        this.blocks = blocks;
+        this.fetchPool = fetchPool;
+        this.window = window;
+        this.cache = cache;
+    }
+
+    /**
+     * Write the blocks of a blocklist to target, replacing it.
+     */
+    public void download(List<String> blocklist, File target) throws IOException {
+        List<String> fetching = new ArrayList<String>();
+        for (String hash : new LinkedHashSet<String>(blocklist)) {
+            if (cache == null || !cache.contains(hash)) {
+                fetching.add(hash);
+            }
+        }
+
+        File temp = new File(target.getAbsoluteFile().getParentFile(),
+                String.format(".%s.%08x.part", target.getName(), new Random().nextInt()));
+        boolean done = false;
+        List<Future<List<ByteString>>> ranges = new ArrayList<Future<List<ByteString>>>();
+        try {
+            List<Chunk> written;
+            try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                written = write(blocklist, fetching, ranges, out);
+                out.force(false);
+            }
+            move(temp, target);
+            done = true;
+
+            if (cache != null) {
+                try (FileChannel in = FileChannel.open(target.toPath(), StandardOpenOption.READ)) {
+                    cache.putChunks(in, written, blocklist);
+                }
+            }
+        } finally {
+            for (Future<List<ByteString>> range : ranges) {
+                if (range != null) {
+                    range.cancel(true);
+                }
+            }
+            if (!done) {
+                temp.delete();
+            }
+        }
+    }
+
+    /*
+     * Write every block in blocklist order, returning where each one
+     * went. The fetch of range r is started once the writer reaches range
+     * r - window, so at most window ranges are in memory.
+     */
+    private List<Chunk> write(List<String> blocklist, List<String> fetching,
+                              List<Future<List<ByteString>>> ranges, FileChannel out) throws IOException {
+        int rangeCount = (fetching.size() + FETCH_BATCH - 1) / FETCH_BATCH;
+        for (int r = 0; r < rangeCount; r++) {
+            ranges.add(null);
+        }
+
+        /* where each distinct hash was first written */
+        Map<String, Chunk> first = new HashMap<String, Chunk>();
+        List<Chunk> written = new ArrayList<Chunk>(blocklist.size());
+        int nextFetch = 0;
+        List<ByteString> range = null;
+        long offset = 0;
+
+        for (String hash : blocklist) {
+            Chunk previous = first.get(hash);
+            ByteString data = null;
+
+            if (previous == null && nextFetch < fetching.size() && fetching.get(nextFetch).equals(hash)) {
+                int r = nextFetch / FETCH_BATCH;
+                if (nextFetch % FETCH_BATCH == 0) {
+                    for (int ahead = r; ahead < Math.min(rangeCount, r + window); ahead++) {
+                        if (ranges.get(ahead) == null) {
+                            ranges.set(ahead, fetchPool.submit(new FetchRange(
+                                    fetching.subList(ahead * FETCH_BATCH,
+                                            Math.min(fetching.size(), (ahead + 1) * FETCH_BATCH)))));
+                        }
+                    }
+                    range = await(ranges.get(r));
+                    ranges.set(r, null);
+                }
+                data = range.get(nextFetch % FETCH_BATCH);
+                nextFetch++;
+            } else if (previous == null && cache != null) {
+                data = cache.get(hash);
+                if (data == null) {
+                    /* evicted since the download started */
+                    data = new FetchRange(Collections.singletonList(hash)).call().get(0);
+                }
+            }
+
+            Chunk chunk;
+            if (data != null) {
+                chunk = new Chunk(offset, data.size());
+                writeFully(out, data, offset);
+                first.put(hash, chunk);
+            } else {
+                chunk = new Chunk(offset, previous.length);
+                copy(out, previous, offset);
+            }
+            written.add(chunk);
+            offset += chunk.length;
+        }
+        return written;
+    }
+
+    private static void writeFully(FileChannel out, ByteString data, long offset) throws IOException {
+        for (ByteBuffer buffer : data.asReadOnlyByteBufferList()) {
+            while (buffer.hasRemaining()) {
+                offset += out.write(buffer, offset);
+            }
+        }
+    }
+
+    /* copy a block already written at from to offset */
+    private static void copy(FileChannel out, Chunk from, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(from.length);
+        while (buffer.hasRemaining()) {
+            if (out.read(buffer, from.offset + buffer.position()) < 0) {
+                throw new IOException("Download file shrank at offset " + from.offset);
+            }
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            offset += out.write(buffer, offset);
+        }
+    }
+
+    private static void move(File temp, File target) throws IOException {
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Status.CANCELLED.withCause(e).asRuntimeException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /* fetch a range of blocks, in order */
+    private final class FetchRange implements Callable<List<ByteString>> {
+        private final List<String> hashes;
+
+        FetchRange(List<String> hashes) {
+            this.hashes = hashes;
+        }
+
+        @Override
+        public List<ByteString> call() throws IOException {
+            List<ByteString> data = new ArrayList<ByteString>(hashes.size());
+            Iterator<Block> received = BlockStreams.getBlocks(blocks, hashes);
+            while (received.hasNext()) {
+                Block block = received.next();
+                if (block.getHash().isEmpty()) {
+                    throw new IOException("BlockStore is missing block " + hashes.get(data.size()));
+                }
+                data.add(block.getData());
+            }
+            return data;
+        }
+    }
+}
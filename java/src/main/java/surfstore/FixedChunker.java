@@ -0,0 +1,32 @@
+package surfstore;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cuts a file into blocks of one fixed size; only the last block may be
+ * shorter.
+ */
+public final class FixedChunker implements Chunker {
+
+    private final int blockSize;
+
+    public FixedChunker(int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public List<Chunk> split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        for (long offset = 0; offset < size; offset += blockSize) {
+            chunks.add(new Chunk(offset, (int) Math.min(blockSize, size - offset)));
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,177 @@
+package surfstore;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import surfstore.SurfStoreBasic.DeleteRequest;
+import surfstore.SurfStoreBasic.HashList;
+import surfstore.SurfStoreBasic.IdleQuery;
+
+/**
+ * Deletes the blocks no file refers to. Runs on the leader MetadataStore,
+ * the one server that knows every blocklist.
+ *
+ * A round is a mark and sweep. The live set is every hash in the
+ * blocklist of a file, or of a write to it that is being committed. Each
+ * BlockStore lists the blocks it holds that have gone unused for the
+ * grace period, and is told to delete the ones not in the live set; it
+ * keeps any that were used after the round started, since a write may
+ * have referred to them since the live set was read.
+ *
+ * Blocks that have been uploaded for a write that is not committed yet
+ * are not in the live set. The grace period keeps them: a client finds
+ * out which blocks to upload with FindMissingBlocks, which counts as
+ * using the ones already there, so its blocks are safe as long as it
+ * commits within the grace period. A write that takes longer may find
+ * some of its blocks gone, and gets MISSING_BLOCKS for them, since
+ * ModifyFile checks every block before the write is committed.
+ *
+ * That check is skipped for blocks in KnownBlocks, so KnownBlocks is
+ * suspended during a round, from before the live set is read until the
+ * deleted blocks have been forgotten. A write that trusted KnownBlocks
+ * notes the number of rounds started when it checked, holding the commit
+ * lock shared so no round starts in between. The check may take a call
+ * to the BlockStores for the blocks KnownBlocks does not vouch for, so a
+ * round can start before the write is in the live set. If one did, the
+ * write checks all of its blocks again once it is, and a block still
+ * there then counts as used after that round started.
+ */
+public final class GarbageCollector {
+    private static final Logger logger = Logger.getLogger(GarbageCollector.class.getName());
+
+    /* hashes per DeleteBlocks call */
+    private static final int DELETE_BATCH = 8192;
+
+    private final BlockCluster blocks;
+    private final ConcurrentMap<String, MetadataStore.Info> files;
+    private final ConcurrentMap<String, MetadataStore.Info> pending;
+    private final KnownBlocks knownBlocks;
+    private final long graceMillis;
+    private final ReadWriteLock commitLock;
+    private final AtomicLong deleted;
+    private volatile long rounds;
+
+    /**
+     * @param pending     the writes being committed, not yet in files
+     * @param graceMillis how long a stored block is kept even if no file
+     *                    refers to it
+     */
+    public GarbageCollector(BlockCluster blocks, ConcurrentMap<String, MetadataStore.Info> files,
+                            ConcurrentMap<String, MetadataStore.Info> pending,
+                            KnownBlocks knownBlocks, long graceMillis) {
+        this.blocks = blocks;
+        this.files = files;
+        this.pending = pending;
+        this.knownBlocks = knownBlocks;
+        this.graceMillis = graceMillis;
+        this.commitLock = new ReentrantReadWriteLock();
+        this.deleted = new AtomicLong();
+    }
+
+    /**
+     * Hold off rounds from starting while a write checks its blocks
+     * against KnownBlocks and reads rounds().
+     */
+    public void beginWrite() {
+        commitLock.readLock().lock();
+    }
+
+    public void endWrite() {
+        commitLock.readLock().unlock();
+    }
+
+    /**
+     * Number of rounds started so far. A round counts as started once
+     * KnownBlocks is suspended.
+     */
+    public long rounds() {
+        return rounds;
+    }
+
+    /**
+     * Run one round. Returns the number of blocks deleted.
+     */
+    public synchronized long collect() {
+        long started = System.nanoTime();
+        commitLock.writeLock().lock();
+        try {
+            knownBlocks.suspend();
+            rounds++;
+        } finally {
+            commitLock.writeLock().unlock();
+        }
+
+        long count = 0;
+        try {
+            Set<String> live = new HashSet<String>();
+            /* a write is put in files before it leaves pending, so read pending first */
+            for (MetadataStore.Info info : pending.values()) {
+                live.addAll(info.hashList);
+            }
+            for (MetadataStore.Info info : files.values()) {
+                live.addAll(info.hashList);
+            }
+            for (int node : blocks.nodes()) {
+                count += sweep(node, live, started);
+            }
+        } finally {
+            knownBlocks.resume();
+        }
+
+        deleted.addAndGet(count);
+        logger.info("Garbage collection deleted " + count + " blocks in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+        return count;
+    }
+
+    /**
+     * Blocks deleted by every round so far.
+     */
+    public long deleted() {
+        return deleted.get();
+    }
+
+    private long sweep(int node, Set<String> live, long started) {
+        Iterator<HashList> idle = blocks.blockingStub(node)
+                .listIdleBlocks(IdleQuery.newBuilder().setIdleMs(graceMillis).build());
+        List<String> garbage = new ArrayList<String>();
+        long count = 0;
+        while (idle.hasNext()) {
+            for (String hash : idle.next().getHashesList()) {
+                if (!live.contains(hash)) {
+                    garbage.add(hash);
+                }
+            }
+            if (garbage.size() >= DELETE_BATCH) {
+                count += delete(node, garbage, started);
+                garbage.clear();
+            }
+        }
+        if (!garbage.isEmpty()) {
+            count += delete(node, garbage, started);
+        }
+        return count;
+    }
+
+    /* delete blocks unless they were used since started - graceMillis */
+    private long delete(int node, List<String> garbage, long started) {
+        long idleMillis = graceMillis + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + 1;
+        long count = blocks.blockingStub(node).deleteBlocks(DeleteRequest.newBuilder()
+                .addAllHashes(garbage)
+                .setIdleMs(idleMillis)
+                .build()).getBlocks();
+        for (String hash : garbage) {
+            knownBlocks.forget(hash);
+        }
+        return count;
+    }
+}
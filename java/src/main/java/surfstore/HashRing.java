@@ -0,0 +1,69 @@
+package surfstore;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of block hashes onto block servers.
+ *
+ * Every server owns VIRTUAL_NODES points on a ring of 64-bit positions,
+ * placed by hashing "block<id>#<n>". A block belongs to the server owning
+ * the first point at or after the block's position, which is the first 8
+ * bytes of its SHA-256. Many points per server keep the shares even, and
+ * adding a server only moves the blocks that land on its new points;
+ * every other block stays where it was.
+ *
+ * The ring depends only on the set of server ids, so every client,
+ * MetadataStore and BlockStore built from the same config agrees on it.
+ */
+public final class HashRing {
+
+    public static final int VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, Integer> points;
+    private final List<Integer> nodes;
+
+    public HashRing(Collection<Integer> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A hash ring needs at least one node");
+        }
+        this.points = new TreeMap<Long, Integer>();
+        this.nodes = new ArrayList<Integer>(nodes);
+        for (int node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                byte[] name = ("block" + node + "#" + i).getBytes(StandardCharsets.UTF_8);
+                points.put(ByteBuffer.wrap(HashUtils.sha256Raw(name, 0, name.length)).getLong(), node);
+            }
+        }
+    }
+
+    public List<Integer> nodes() {
+        return nodes;
+    }
+
+    /**
+     * The server that stores the block with this hash.
+     */
+    public int nodeFor(String hash) {
+        if (nodes.size() == 1) {
+            return nodes.get(0);
+        }
+        Map.Entry<Long, Integer> point = points.ceilingEntry(position(hash));
+        return (point != null ? point : points.firstEntry()).getValue();
+    }
+
+    /* position of a block on the ring; hashes that are not SHA-256 digests are hashed first */
+    private static long position(String hash) {
+        byte[] raw = HashUtils.decode(hash);
+        if (raw == null) {
+            byte[] bytes = hash.getBytes(StandardCharsets.UTF_8);
+            raw = HashUtils.sha256Raw(bytes, 0, bytes.length);
+        }
+        return ByteBuffer.wrap(raw).getLong();
+    }
+}
@@ -1,24 +1,223 @@
 package surfstore;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+/**
+ * SHA-256 block hashes.
+ *
+ * A block hash is the Base64 encoding of the SHA-256 of the block data.
+ * The sha256 methods return that string; the sha256Raw methods return,
+ * or write into a caller's array, the 32 byte digest itself. Each thread
+ * reuses one MessageDigest and one read buffer, so hashing into a caller's
+ * array allocates nothing.
+ */
 public final class HashUtils {
-	
+
+	public static final int SHA256_LENGTH = 32;
+
+	private static final int READ_BUFFER_SIZE = 64 << 10;
+
+	private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	};
+
+	private static final ThreadLocal<ByteBuffer> READ_BUFFER = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		}
+	};
+
+	/* grows to the largest batch a thread has hashed */
+	private static final ThreadLocal<byte[]> BATCH_BUFFER = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[0];
+		}
+	};
+
+	private HashUtils() {
+	}
+
 	public static String sha256(String s) {
-		MessageDigest digest = null;
+		return sha256(s.getBytes(StandardCharsets.UTF_8));
+	}
 
+	public static String sha256(byte[] data) {
+		return sha256(data, 0, data.length);
+	}
+
+	public static String sha256(byte[] data, int offset, int length) {
+		return encode(sha256Raw(data, offset, length));
+	}
+
+	/**
+	 * Hash the bytes between the buffer's position and limit. The position
+	 * is moved to the limit.
+	 */
+	public static String sha256(ByteBuffer data) {
+		return encode(sha256Raw(data));
+	}
+
+	/**
+	 * Hash length bytes of a file starting at offset.
+	 */
+	public static String sha256(FileChannel channel, long offset, int length) throws IOException {
+		byte[] raw = new byte[SHA256_LENGTH];
+		sha256Raw(channel, offset, length, raw, 0);
+		return encode(raw);
+	}
+
+	public static byte[] sha256Raw(byte[] data, int offset, int length) {
+		MessageDigest digest = DIGEST.get();
+		digest.update(data, offset, length);
+		return digest.digest();
+	}
+
+	/**
+	 * Raw digest of the bytes between the buffer's position and limit. The
+	 * position is moved to the limit.
+	 */
+	public static byte[] sha256Raw(ByteBuffer data) {
+		MessageDigest digest = DIGEST.get();
+		digest.update(data);
+		return digest.digest();
+	}
+
+	/**
+	 * Write the raw digest of the bytes between the buffer's position and
+	 * limit into out[outOffset] to out[outOffset + 31]. The position is
+	 * moved to the limit.
+	 */
+	public static void sha256Raw(ByteBuffer data, byte[] out, int outOffset) {
+		MessageDigest digest = DIGEST.get();
+		digest.update(data);
+		finish(digest, out, outOffset);
+	}
+
+	/**
+	 * Write the raw digest of length bytes of a file starting at offset
+	 * into out[outOffset] to out[outOffset + 31].
+	 */
+	public static void sha256Raw(FileChannel channel, long offset, int length, byte[] out, int outOffset)
+			throws IOException {
+		MessageDigest digest = DIGEST.get();
+		ByteBuffer buffer = READ_BUFFER.get();
+		long end = offset + length;
+
+		while (offset < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - offset));
+			while (buffer.hasRemaining()) {
+				int n = channel.read(buffer, offset + buffer.position());
+				if (n < 0) {
+					digest.reset();
+					throw new EOFException("File ends before offset " + end);
+				}
+			}
+			offset += buffer.position();
+			buffer.flip();
+			digest.update(buffer);
+		}
+		finish(digest, out, outOffset);
+	}
+
+	/**
+	 * Hash every chunk of a file on the given pool. Consecutive chunks are
+	 * grouped into tasks of batchSize chunks, each of which reads its part
+	 * of the file with one positional read. The futures are in file order,
+	 * so a caller can start using the first hashes while the rest are
+	 * still being computed.
+	 */
+	public static List<Future<String[]>> sha256Chunks(FileChannel channel, List<Chunk> chunks,
+			int batchSize, ExecutorService pool) {
+		List<Future<String[]>> batches = new ArrayList<Future<String[]>>();
+		for (int start = 0; start < chunks.size(); start += batchSize) {
+			List<Chunk> batch = chunks.subList(start, Math.min(start + batchSize, chunks.size()));
+			batches.add(pool.submit(new ChunkBatch(channel, batch)));
+		}
+		return batches;
+	}
+
+	public static String encode(byte[] raw) {
+		return Base64.getEncoder().encodeToString(raw);
+	}
+
+	/**
+	 * The raw digest of a block hash, or null if the hash is not the Base64
+	 * encoding of a SHA-256 digest.
+	 */
+	public static byte[] decode(String hash) {
+		byte[] raw;
+		try {
+			raw = Base64.getDecoder().decode(hash);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		return raw.length == SHA256_LENGTH ? raw : null;
+	}
+
+	private static void finish(MessageDigest digest, byte[] out, int outOffset) {
 		try {
-			digest = MessageDigest.getInstance("SHA-256");
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
+			digest.digest(out, outOffset, SHA256_LENGTH);
+		} catch (DigestException e) {
+			throw new IllegalArgumentException(e);
 		}
+	}
 
-		byte[] hash = digest.digest(s.getBytes(StandardCharsets.UTF_8));
-		String encoded = Base64.getEncoder().encodeToString(hash);
+	private static final class ChunkBatch implements Callable<String[]> {
+		private final FileChannel channel;
+		private final List<Chunk> chunks;
 
-		return encoded;
+		ChunkBatch(FileChannel channel, List<Chunk> chunks) {
+			this.channel = channel;
+			this.chunks = chunks;
+		}
+
+		@Override
+		public String[] call() throws IOException {
+			Chunk first = chunks.get(0);
+			Chunk last = chunks.get(chunks.size() - 1);
+			int length = (int) (last.offset + last.length - first.offset);
+
+			byte[] data = BATCH_BUFFER.get();
+			if (data.length < length) {
+				data = new byte[length];
+				BATCH_BUFFER.set(data);
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, first.offset + buffer.position()) < 0) {
+					throw new EOFException("File ends before offset " + (first.offset + length));
+				}
+			}
+
+			String[] hashes = new String[chunks.size()];
+			for (int i = 0; i < hashes.length; i++) {
+				Chunk chunk = chunks.get(i);
+				hashes[i] = sha256(data, (int) (chunk.offset - first.offset), chunk.length);
+			}
+			return hashes;
+		}
 	}
 }
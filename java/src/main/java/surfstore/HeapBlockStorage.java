@@ -0,0 +1,81 @@
+package surfstore;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Keeps every block in a map on the Java heap. Nothing survives a
+ * restart; useful for tests and small deployments.
+ */
+public final class HeapBlockStorage implements BlockStorage {
+
+    private final ConcurrentMap<String, ByteString> blockMap;
+    private final AtomicLong totalBytes;
+
+    public HeapBlockStorage() {
+        this.blockMap = new ConcurrentHashMap<String, ByteString>();
+        this.totalBytes = new AtomicLong();
+    }
+
+    @Override
+    public void put(String hash, ByteString data) {
+        if (blockMap.putIfAbsent(hash, data) == null) {
+            totalBytes.addAndGet(data.size());
+        }
+    }
+
+    @Override
+    public ByteString get(String hash) {
+        return blockMap.get(hash);
+    }
+
+    @Override
+    public boolean contains(String hash) {
+        return blockMap.containsKey(hash);
+    }
+
+    @Override
+    public boolean delete(String hash) {
+        ByteString data = blockMap.remove(hash);
+        if (data == null) {
+            return false;
+        }
+        totalBytes.addAndGet(-data.size());
+        return true;
+    }
+
+    @Override
+    public Iterator<String> hashes() {
+        return Collections.unmodifiableSet(blockMap.keySet()).iterator();
+    }
+
+    @Override
+    public long count() {
+        return blockMap.size();
+    }
+
+    @Override
+    public long bytes() {
+        return totalBytes.get();
+    }
+
+    /* nothing is on disk */
+    @Override
+    public void sync() {
+    }
+
+    /* deleted blocks are freed by the garbage collector */
+    @Override
+    public long compact() {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+    }
+}
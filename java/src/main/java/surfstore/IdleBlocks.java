@@ -0,0 +1,104 @@
+package surfstore;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When the blocks of a BlockStore were last used, so garbage collection
+ * never deletes a block a client may be about to refer to.
+ *
+ * A block is used when it is stored, or when a client is told it is
+ * present. Nothing is tracked until the first query: from then on every
+ * use is recorded, and a block with no recorded use counts as used when
+ * tracking started. Each query drops the uses older than the idle time it
+ * asks about, so only the blocks used within that time are kept. If no
+ * query comes for twice the last idle time asked about, tracking stops
+ * and the next query starts it over, so a BlockStore that is never
+ * collected does not remember every block it ever served.
+ */
+public final class IdleBlocks {
+
+    private final ConcurrentMap<String, Long> lastUse;
+
+    /* when tracking started, and the last query and its idle time, in nanoTime */
+    private volatile boolean tracking;
+    private volatile long since;
+    private volatile long lastQuery;
+    private volatile long window;
+
+    public IdleBlocks() {
+        this.lastUse = new ConcurrentHashMap<String, Long>();
+    }
+
+    public void use(String hash) {
+        if (!tracking) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - lastQuery > 2 * window) {
+            stop();
+            return;
+        }
+        lastUse.put(hash, now);
+    }
+
+    public void useAll(List<String> hashes) {
+        for (String hash : hashes) {
+            use(hash);
+        }
+    }
+
+    /**
+     * Start answering which blocks have been idle for idleMillis, starting
+     * to track use if it is not tracked yet.
+     */
+    public synchronized void query(long idleMillis) {
+        long now = System.nanoTime();
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        if (!tracking || now - lastQuery > 2 * Math.max(window, idleNanos)) {
+            lastUse.clear();
+            since = now;
+            tracking = true;
+        }
+        lastQuery = now;
+        window = Math.max(idleNanos, 1);
+
+        /* a use recorded while this runs replaces the value, and is kept */
+        for (Map.Entry<String, Long> entry : lastUse.entrySet()) {
+            if (now - entry.getValue() >= idleNanos) {
+                lastUse.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Whether a block has gone unused for idleMillis. Always false while
+     * use is not tracked.
+     */
+    public boolean idle(String hash, long idleMillis) {
+        if (!tracking) {
+            return false;
+        }
+        long now = System.nanoTime();
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        Long used = lastUse.get(hash);
+        return now - since >= idleNanos && (used == null || now - used >= idleNanos);
+    }
+
+    /**
+     * Number of blocks with a recorded use.
+     */
+    public long size() {
+        return lastUse.size();
+    }
+
+    private synchronized void stop() {
+        if (tracking && System.nanoTime() - lastQuery > 2 * window) {
+            tracking = false;
+            lastUse.clear();
+        }
+    }
+}
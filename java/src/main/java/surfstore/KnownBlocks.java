@@ -0,0 +1,246 @@
+package surfstore;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Blocks the MetadataStore has recently seen present on the BlockStores,
+ * so ModifyFile only asks the BlockStores about the rest.
+ *
+ * This is an exact set, not a Bloom or cuckoo filter: a false positive
+ * would let a file be committed with a block no BlockStore has. Keys are
+ * the raw 32 byte SHA-256 digests, kept in open-addressing tables of
+ * longs with linear probing, so an entry costs about 43 bytes of heap and
+ * no objects.
+ *
+ * Entries are kept in two generations. Lookups check both, additions go
+ * to the current one, and the current one becomes the previous one (and
+ * the old previous one is dropped) every maxAge / 2 or when it holds
+ * maxBlocks / 2 entries. So a block is trusted for at most maxAge after it
+ * was last confirmed, which bounds how long a block lost by a BlockStore
+ * can go unnoticed, and the set never holds more than maxBlocks entries.
+ * Blocks that are deleted on purpose must be removed with forget(), and
+ * the set must be suspended while they are being deleted.
+ */
+public final class KnownBlocks {
+
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    private static final double MAX_LOAD = 0.75;
+
+    private final boolean enabled;
+    private final int generationSize;
+    private final long rotateNanos;
+
+    /* guarded by this */
+    private DigestSet current;
+    private DigestSet previous;
+    private long rotatedAt;
+    private boolean suspended;
+
+    /**
+     * @param maxBlocks    most entries kept; 0 turns the set off, so every
+     *                     block is always checked
+     * @param maxAgeMillis how long a confirmed block is trusted
+     */
+    public KnownBlocks(int maxBlocks, long maxAgeMillis) {
+        this.enabled = maxBlocks > 1 && maxAgeMillis > 0;
+        this.generationSize = maxBlocks / 2;
+        this.rotateNanos = maxAgeMillis * 1000000L / 2;
+        this.current = new DigestSet();
+        this.previous = new DigestSet();
+        this.rotatedAt = System.nanoTime();
+    }
+
+    /**
+     * The hashes not known to be stored, in the order given.
+     */
+    public List<String> unknown(List<String> hashes) {
+        if (!enabled) {
+            return hashes;
+        }
+        List<String> unknown = new ArrayList<String>();
+        long[] key = new long[4];
+        synchronized (this) {
+            if (suspended) {
+                return hashes;
+            }
+            expire();
+            for (String hash : hashes) {
+                if (!decodeKey(hash, key) || !(current.contains(key) || previous.contains(key))) {
+                    unknown.add(hash);
+                }
+            }
+        }
+        return unknown;
+    }
+
+    /**
+     * Record that these blocks are stored.
+     */
+    public void addAll(List<String> hashes) {
+        if (!enabled) {
+            return;
+        }
+        long[] key = new long[4];
+        synchronized (this) {
+            expire();
+            for (String hash : hashes) {
+                if (!decodeKey(hash, key)) {
+                    continue;
+                }
+                if (current.size >= generationSize) {
+                    rotate();
+                }
+                current.add(key);
+            }
+        }
+    }
+
+    /**
+     * Remove a block that is no longer stored.
+     */
+    public synchronized void forget(String hash) {
+        long[] key = new long[4];
+        if (decodeKey(hash, key)) {
+            current.remove(key);
+            previous.remove(key);
+        }
+    }
+
+    /**
+     * Report every block as unknown until resume() is called. Blocks are
+     * still added meanwhile.
+     */
+    public synchronized void suspend() {
+        suspended = true;
+    }
+
+    public synchronized void resume() {
+        suspended = false;
+    }
+
+    public synchronized void clear() {
+        current = new DigestSet();
+        previous = new DigestSet();
+        rotatedAt = System.nanoTime();
+    }
+
+    public synchronized long size() {
+        return current.size + previous.size;
+    }
+
+    /* called holding the lock */
+    private void expire() {
+        long now = System.nanoTime();
+        if (now - rotatedAt >= 2 * rotateNanos) {
+            current = new DigestSet();
+            previous = new DigestSet();
+            rotatedAt = now;
+        } else if (now - rotatedAt >= rotateNanos) {
+            rotate();
+        }
+    }
+
+    /* called holding the lock */
+    private void rotate() {
+        previous = current;
+        current = new DigestSet();
+        rotatedAt = System.nanoTime();
+    }
+
+    /* the raw SHA-256 of a Base64 block hash as four longs; false if it is not one */
+    private static boolean decodeKey(String hash, long[] key) {
+        byte[] raw = HashUtils.decode(hash);
+        if (raw == null) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        for (int i = 0; i < 4; i++) {
+            key[i] = buffer.getLong();
+        }
+        return true;
+    }
+
+    /*
+     * Open-addressing set of 256-bit keys, four longs per slot. Deletes
+     * shift later entries of the probe sequence back instead of leaving
+     * markers in the table.
+     */
+    private static final class DigestSet {
+        private long[] keys = new long[INITIAL_CAPACITY * 4];
+        private BitSet used = new BitSet(INITIAL_CAPACITY);
+        private int capacity = INITIAL_CAPACITY;
+        int size;
+
+        boolean contains(long[] key) {
+            return used.get(findSlot(key));
+        }
+
+        void add(long[] key) {
+            int slot = findSlot(key);
+            if (used.get(slot)) {
+                return;
+            }
+            write(slot, key);
+            size++;
+            if (size > capacity * MAX_LOAD) {
+                grow();
+            }
+        }
+
+        void remove(long[] key) {
+            int hole = findSlot(key);
+            if (!used.get(hole)) {
+                return;
+            }
+            size--;
+
+            /* move back every later entry whose home slot is at or before the hole */
+            int mask = capacity - 1;
+            for (int next = (hole + 1) & mask; used.get(next); next = (next + 1) & mask) {
+                int home = (int) keys[next * 4] & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    System.arraycopy(keys, next * 4, keys, hole * 4, 4);
+                    hole = next;
+                }
+            }
+            used.clear(hole);
+        }
+
+        /* the slot holding this key, or the empty slot where it would be inserted */
+        private int findSlot(long[] key) {
+            int mask = capacity - 1;
+            int slot = (int) key[0] & mask;
+            while (used.get(slot)) {
+                int base = slot * 4;
+                if (keys[base] == key[0] && keys[base + 1] == key[1]
+                        && keys[base + 2] == key[2] && keys[base + 3] == key[3]) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void write(int slot, long[] key) {
+            System.arraycopy(key, 0, keys, slot * 4, 4);
+            used.set(slot);
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            BitSet oldUsed = used;
+            capacity *= 2;
+            keys = new long[capacity * 4];
+            used = new BitSet(capacity);
+
+            long[] key = new long[4];
+            for (int slot = oldUsed.nextSetBit(0); slot >= 0; slot = oldUsed.nextSetBit(slot + 1)) {
+                System.arraycopy(oldKeys, slot * 4, key, 0, 4);
+                write(findSlot(key), key);
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package surfstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import surfstore.SurfStoreBasic.Block;
+import surfstore.SurfStoreBasic.FileInfo;
+import surfstore.SurfStoreBasic.WriteResult;
+import surfstore.SurfStoreBasic.WriteResult.Result;
+
+/**
+ * Drives a SurfStore deployment with a mix of operations and reports
+ * throughput and latency per operation.
+ *
+ * Operations:
+ *
+ *   read   - ReadFile and download every block of an existing file
+ *   write  - upload a new version of an existing file
+ *   create - upload a new file
+ *   delete - delete an existing file
+ *
+ * Uploaded files are generated: blocks of Client.BLOCK_SIZE bytes, each
+ * a copy of one of a small pool of shared blocks with probability
+ * dedupRatio and random otherwise. Downloaded data is counted and
+ * discarded.
+ *
+ * In closed-loop mode (rate 0) each of the concurrency threads runs one
+ * operation after another. In open-loop mode operations are started at a
+ * fixed rate whatever the servers do, and an operation's latency counts
+ * from when it was due, so time spent waiting for a free thread is
+ * included rather than hidden.
+ */
+public final class LoadGenerator {
+
+    /* named workloads for --mix */
+    public static final Map<String, String> PRESETS = new LinkedHashMap<String, String>();
+    static {
+        PRESETS.put("read-heavy", "read:90,write:10");
+        PRESETS.put("write-heavy", "read:10,write:80,create:10");
+        PRESETS.put("churn", "read:10,create:45,delete:45");
+    }
+
+    private static final String[] OPERATIONS = { "read", "write", "create", "delete" };
+    private static final int SHARED_BLOCKS = 256;
+
+    private final MetadataStoreGrpc.MetadataStoreBlockingStub metadataStub;
+    private final List<MetadataStoreGrpc.MetadataStoreBlockingStub> readStubs;
+    private final BlockCluster blocks;
+    private final Uploader uploader;
+
+    private final int[] weights;
+    private final int totalWeight;
+    private final long meanFileSize;
+    private final String sizeDistribution;
+    private final double dedupRatio;
+    private final byte[][] sharedBlocks;
+
+    private final Stats stats;
+    private final String prefix;
+    private final AtomicInteger nextFile;
+    private final AtomicInteger nextRead;
+    /* files that exist; an operation takes a file out while it works on it */
+    private final List<String> files;
+
+    /**
+     * @param mix              a preset name, or "op:weight,..." over read,
+     *                         write, create and delete
+     * @param sizeDistribution fixed, uniform (0 to twice the mean) or
+     *                         exponential
+     */
+    public LoadGenerator(MetadataStoreGrpc.MetadataStoreBlockingStub metadataStub,
+                         List<MetadataStoreGrpc.MetadataStoreBlockingStub> readStubs,
+                         BlockCluster blocks, Uploader uploader,
+                         String mix, long meanFileSize, String sizeDistribution, double dedupRatio) {
+        this.metadataStub = metadataStub;
+        this.readStubs = readStubs;
+        this.blocks = blocks;
+        this.uploader = uploader;
+
+        this.weights = parseMix(PRESETS.containsKey(mix) ? PRESETS.get(mix) : mix);
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("Workload mix " + mix + " has no operations");
+        }
+        this.totalWeight = total;
+        this.meanFileSize = meanFileSize;
+        this.sizeDistribution = sizeDistribution;
+        this.dedupRatio = dedupRatio;
+
+        Random random = new Random(42);
+        this.sharedBlocks = new byte[SHARED_BLOCKS][Client.BLOCK_SIZE];
+        for (byte[] block : sharedBlocks) {
+            random.nextBytes(block);
+        }
+
+        this.stats = new Stats();
+        this.prefix = String.format("load-%08x-", new Random().nextInt());
+        this.nextFile = new AtomicInteger();
+        this.nextRead = new AtomicInteger();
+        this.files = new ArrayList<String>();
+    }
+
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String part : mix.split(",")) {
+            String[] opWeight = part.trim().split(":");
+            int op = indexOf(opWeight[0]);
+            if (op < 0 || opWeight.length != 2) {
+                throw new IllegalArgumentException("Bad workload mix entry " + part);
+            }
+            weights[op] = Integer.parseInt(opWeight[1]);
+        }
+        return weights;
+    }
+
+    private static int indexOf(String op) {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            if (OPERATIONS[i].equals(op)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Create the initial files, run the workload for the given number of
+     * seconds and return the stats of the operations run.
+     *
+     * @param rate operations per second to start, or 0 for closed loop
+     */
+    public Stats run(int initialFiles, int durationSeconds, final int concurrency, double rate)
+            throws IOException, InterruptedException {
+        for (int i = 0; i < initialFiles; i++) {
+            String name = newFileName();
+            upload(name);
+            release(name);
+        }
+
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        try {
+            if (rate <= 0) {
+                for (int i = 0; i < concurrency; i++) {
+                    workers.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            while (System.nanoTime() < end) {
+                                runOne(System.nanoTime());
+                            }
+                        }
+                    });
+                }
+            } else {
+                long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+                for (long due = System.nanoTime(); due < end; due += interval) {
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    final long start = due;
+                    workers.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            runOne(start);
+                        }
+                    });
+                }
+            }
+        } finally {
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        return stats;
+    }
+
+    /*
+     * Pick an operation by weight, run it and record it as started at
+     * start. An operation on an existing file becomes a create while
+     * there are no files to work on.
+     */
+    private void runOne(long start) {
+        int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+        int op = 0;
+        while (pick >= weights[op]) {
+            pick -= weights[op];
+            op++;
+        }
+        String name = OPERATIONS[op].equals("create") ? null : take();
+        String operation = (name == null) ? "create" : OPERATIONS[op];
+
+        Stats.Method method = stats.method(operation);
+        method.calls.incrementAndGet();
+        method.inFlight.incrementAndGet();
+        boolean ok = false;
+        try {
+            ok = run(operation, name, method);
+        } catch (IOException | RuntimeException e) {
+            ok = false;
+        } finally {
+            method.inFlight.decrementAndGet();
+            method.latency.record((System.nanoTime() - start) / 1000);
+            if (!ok) {
+                method.errors.incrementAndGet();
+            }
+        }
+    }
+
+    /* run op on the named file, which is taken out of the set, or on a new file for create */
+    private boolean run(String op, String name, Stats.Method method) throws IOException {
+        if (op.equals("create")) {
+            name = newFileName();
+            method.bytesOut.addAndGet(upload(name));
+            release(name);
+            return true;
+        }
+
+        boolean exists = true;
+        try {
+            if (op.equals("read")) {
+                method.bytesIn.addAndGet(download(name));
+                return true;
+            }
+            if (op.equals("write")) {
+                method.bytesOut.addAndGet(upload(name));
+                return true;
+            }
+            FileInfo info = metadataStub.readFile(FileInfo.newBuilder().setFilename(name).build());
+            WriteResult result = metadataStub.deleteFile(FileInfo.newBuilder()
+                    .setFilename(name)
+                    .setVersion(info.getVersion() + 1)
+                    .build());
+            exists = result.getResult() != Result.OK;
+            return !exists;
+        } finally {
+            if (exists) {
+                release(name);
+            }
+        }
+    }
+
+    /* upload generated contents under this name; returns the file size */
+    private long upload(String name) throws IOException {
+        File file = File.createTempFile("surfstore-load", ".bin");
+        try {
+            long size = fileSize();
+            writeContents(file, size);
+            WriteResult result = uploader.upload(name, file);
+            if (result.getResult() != Result.OK) {
+                throw new IOException("Upload of " + name + " failed: " + result.getResult());
+            }
+            return size;
+        } finally {
+            file.delete();
+        }
+    }
+
+    /* download every block of a file and return the number of bytes read */
+    private long download(String name) throws IOException {
+        FileInfo request = FileInfo.newBuilder().setFilename(name).build();
+        int server = Math.abs(nextRead.getAndIncrement() % readStubs.size());
+        FileInfo info = readStubs.get(server).readFile(request);
+
+        long bytes = 0;
+        Iterator<Block> received = BlockStreams.getBlocks(blocks, info.getBlocklistList());
+        while (received.hasNext()) {
+            Block block = received.next();
+            if (block.getHash().isEmpty()) {
+                throw new IOException("BlockStore is missing a block of " + name);
+            }
+            bytes += block.getData().size();
+        }
+        return bytes;
+    }
+
+    private long fileSize() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long size;
+        if (sizeDistribution.equals("uniform")) {
+            size = (long) (random.nextDouble() * 2 * meanFileSize);
+        } else if (sizeDistribution.equals("exponential")) {
+            size = (long) (-Math.log(1 - random.nextDouble()) * meanFileSize);
+        } else {
+            size = meanFileSize;
+        }
+        return Math.max(size, 1);
+    }
+
+    private void writeContents(File file, long size) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        byte[] fresh = new byte[Client.BLOCK_SIZE];
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for (long written = 0; written < size; written += Client.BLOCK_SIZE) {
+                int length = (int) Math.min(Client.BLOCK_SIZE, size - written);
+                if (random.nextDouble() < dedupRatio) {
+                    out.write(sharedBlocks[random.nextInt(SHARED_BLOCKS)], 0, length);
+                } else {
+                    random.nextBytes(fresh);
+                    out.write(fresh, 0, length);
+                }
+            }
+        }
+    }
+
+    private String newFileName() {
+        return prefix + nextFile.getAndIncrement();
+    }
+
+    /* take a random existing file out of the set, or null if there is none */
+    private String take() {
+        synchronized (files) {
+            if (files.isEmpty()) {
+                return null;
+            }
+            int i = ThreadLocalRandom.current().nextInt(files.size());
+            String name = files.get(i);
+            files.set(i, files.get(files.size() - 1));
+            files.remove(files.size() - 1);
+            return name;
+        }
+    }
+
+    private void release(String name) {
+        synchronized (files) {
+            files.add(name);
+        }
+    }
+
+    /**
+     * One line per operation with its throughput, then the latency table.
+     */
+    public static String format(Stats stats, int durationSeconds) {
+        StringBuilder out = new StringBuilder();
+        SurfStoreBasic.StatsReport report = stats.report();
+        for (SurfStoreBasic.MethodStats method : report.getMethodsList()) {
+            out.append(String.format("%-8s %10.1f ops/s %10.2f MB/s%n", method.getMethod(),
+                    (double) method.getCalls() / durationSeconds,
+                    (method.getBytesIn() + method.getBytesOut()) / 1e6 / durationSeconds));
+        }
+        out.append(Stats.format(report));
+        return out.toString();
+    }
+}
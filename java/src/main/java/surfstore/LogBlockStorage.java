@@ -0,0 +1,641 @@
+package surfstore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * Append-only, log-structured block storage.
+ *
+ * Blocks are appended to segment files in the data directory. Once a
+ * segment reaches its size limit it is sealed: a footer listing the hash,
+ * offset and length of every record in it is written at its end. Opening
+ * the store only reads these footers; the one segment that was still
+ * being written when the process died is the only one that is scanned
+ * record by record.
+ *
+ * Segment layout:
+ *
+ *   record*  footer-entry*  trailer
+ *
+ *   record       = hash length (int), data length (int), data crc32 (int),
+ *                  hash (utf-8), data
+ *   footer-entry = hash length (short), hash (utf-8), data offset (long),
+ *                  data length (int)
+ *   trailer      = footer offset (long), entry count (int), FOOTER_MAGIC
+ *
+ * A delete appends a tombstone: a record with data length -1 and no data,
+ * listed in the footer with length -1. Segments are replayed in order, so
+ * a tombstone hides every earlier record of its hash.
+ *
+ * compact() reclaims the space of deleted blocks: a sealed segment less
+ * than half of which is live records has its live records appended to
+ * the newest segment, and is then deleted. Its tombstones are carried
+ * over too, unless it is the oldest segment, since an older segment may
+ * still hold a record they hide; so tombstones always count as live.
+ * Records are copied a batch at a time under the lock, so writes wait for
+ * one batch at most, and reads never wait.
+ *
+ * Used as a cache, the store is bounded by dropping whole segments,
+ * oldest first; touch() copies a block that is still in use out of the
+ * older segments so it survives.
+ *
+ * put() only writes a record; sync() forces the newest segment to disk.
+ * Forces are group committed: a sync() that finds a force in progress
+ * waits for it and then forces everything appended meanwhile in one go,
+ * so concurrent writers share each force. Sealing a segment forces it.
+ *
+ * Writes are sequential appends to the newest segment. Sealed segments
+ * are memory-mapped, and a read returns a ByteString over the mapped
+ * region without copying; blocks in the newest segment are fetched with
+ * a single positional read.
+ */
+public final class LogBlockStorage implements BlockStorage {
+    private static final Logger logger = Logger.getLogger(LogBlockStorage.class.getName());
+
+    public static final long DEFAULT_SEGMENT_SIZE = 256L << 20;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final long FOOTER_MAGIC = 0x5355524653544f52L;
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final int TRAILER_SIZE = 20;
+    private static final int MAX_HASH_LENGTH = 1024;
+    /* data length of a tombstone record */
+    private static final int TOMBSTONE = -1;
+    /* sealed segments with less than this fraction of live records are compacted */
+    private static final double MIN_LIVE_RATIO = 0.5;
+    /* records copied per hold of the lock while compacting */
+    private static final int COMPACT_BATCH = 64;
+
+    private final File dir;
+    private final long segmentSize;
+    private final ConcurrentMap<String, Location> index;
+    private final List<Segment> segments;
+    private final AtomicLong totalBytes;
+    /* held while forcing the active segment, so one force serves every waiting sync() */
+    private final Object syncLock;
+
+    /* the segment appends go to, and the entries its footer will list */
+    private Segment active;
+    private List<Entry> activeEntries;
+
+    public LogBlockStorage(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public LogBlockStorage(File dir, long segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.index = new ConcurrentHashMap<String, Location>();
+        this.segments = new ArrayList<Segment>();
+        this.totalBytes = new AtomicLong();
+        this.syncLock = new Object();
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create data directory " + dir);
+        }
+        open();
+    }
+
+    private void open() throws IOException {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+
+        for (int i = 0; i < files.length; i++) {
+            Segment segment = new Segment(segmentId(files[i]), files[i]);
+            segments.add(segment);
+            boolean last = (i == files.length - 1);
+
+            List<Entry> entries = readFooter(segment);
+            if (entries == null) {
+                logger.info("Recovering unsealed segment " + files[i].getName());
+                entries = scan(segment);
+                if (!last) {
+                    writeFooter(segment, entries);
+                    segment.map();
+                }
+            } else if (!last) {
+                segment.map();
+            } else {
+                /* reopen the newest segment for appending over its footer */
+                segment.channel.truncate(segment.writePosition);
+            }
+
+            for (Entry entry : entries) {
+                Location previous = (entry.length == TOMBSTONE)
+                        ? index.remove(entry.hash)
+                        : index.put(entry.hash, new Location(segment, entry.offset, entry.length));
+                if (previous != null) {
+                    totalBytes.addAndGet(-previous.length);
+                    previous.segment.liveBytes -= recordSize(entry.hash, previous.length);
+                }
+                if (entry.length != TOMBSTONE) {
+                    totalBytes.addAndGet(entry.length);
+                }
+                segment.liveBytes += recordSize(entry.hash, Math.max(entry.length, 0));
+            }
+            if (last) {
+                active = segment;
+                activeEntries = entries;
+            }
+        }
+
+        if (active == null) {
+            active = createSegment(1);
+            activeEntries = new ArrayList<Entry>();
+        }
+        /* what the last process appended may not have been forced */
+        active.channel.force(false);
+        active.synced = active.writePosition;
+        logger.info("Opened " + segments.size() + " segments holding " + index.size() + " blocks");
+    }
+
+    @Override
+    public void put(String hash, ByteString data) throws IOException {
+        if (index.containsKey(hash)) {
+            return;
+        }
+        synchronized (this) {
+            if (index.containsKey(hash)) {
+                return;
+            }
+            append(hash, data);
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        Segment segment;
+        long end;
+        synchronized (this) {
+            segment = active;
+            end = active.writePosition;
+        }
+        if (segment.synced >= end) {
+            return;
+        }
+        synchronized (syncLock) {
+            /* a force that started after end was reached may have covered it */
+            if (segment.synced >= end) {
+                return;
+            }
+            long target;
+            synchronized (this) {
+                if (segment != active) {
+                    /* sealed since, which forced it */
+                    return;
+                }
+                target = segment.writePosition;
+            }
+            segment.channel.force(false);
+            segment.synced = target;
+        }
+    }
+
+    /* append a record for this block and point the index at it; called holding the lock */
+    private void append(String hash, ByteString data) throws IOException {
+        byte[] hashBytes = hash.getBytes(StandardCharsets.UTF_8);
+        long recordSize = RECORD_HEADER_SIZE + hashBytes.length + data.size();
+        List<ByteBuffer> dataBuffers = data.asReadOnlyByteBufferList();
+        rollIfFull(recordSize);
+
+        CRC32 crc = new CRC32();
+        for (ByteBuffer buffer : dataBuffers) {
+            crc.update(buffer.duplicate());
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(hashBytes.length).putInt(data.size()).putInt((int) crc.getValue());
+        header.flip();
+
+        long position = active.writePosition;
+        writeFully(active.channel, position, header, ByteBuffer.wrap(hashBytes));
+        writeFully(active.channel, position + RECORD_HEADER_SIZE + hashBytes.length,
+                dataBuffers.toArray(new ByteBuffer[dataBuffers.size()]));
+        active.writePosition += recordSize;
+
+        long dataOffset = position + RECORD_HEADER_SIZE + hashBytes.length;
+        activeEntries.add(new Entry(hash, dataOffset, data.size()));
+        Location previous = index.put(hash, new Location(active, dataOffset, data.size()));
+        if (previous != null) {
+            totalBytes.addAndGet(-previous.length);
+            previous.segment.liveBytes -= recordSize(hash, previous.length);
+        }
+        totalBytes.addAndGet(data.size());
+        active.liveBytes += recordSize(hash, data.size());
+    }
+
+    /**
+     * Copy a block to the newest segment if it is in the older half of the
+     * segments, so that dropOldestSegment() keeps it. Returns false if the
+     * block is not stored.
+     */
+    public synchronized boolean touch(String hash) throws IOException {
+        Location location = index.get(hash);
+        if (location == null) {
+            return false;
+        }
+        if (segments.indexOf(location.segment) < segments.size() / 2) {
+            append(hash, get(hash));
+        }
+        return true;
+    }
+
+    /**
+     * Delete the oldest segment, and with it every block whose newest copy
+     * is in it. The segment being written is never dropped. Returns the
+     * number of bytes freed, or 0 if there was nothing to drop.
+     */
+    public synchronized long dropOldestSegment() throws IOException {
+        if (segments.size() < 2) {
+            return 0;
+        }
+        Segment oldest = segments.remove(0);
+        List<Entry> entries = readFooter(oldest);
+        if (entries == null) {
+            entries = scan(oldest);
+        }
+        for (Entry entry : entries) {
+            Location location = index.get(entry.hash);
+            if (location != null && location.segment == oldest && index.remove(entry.hash, location)) {
+                totalBytes.addAndGet(-location.length);
+            }
+        }
+        long freed = oldest.channel.size();
+        oldest.channel.close();
+        if (!oldest.file.delete()) {
+            throw new IOException("Cannot delete segment " + oldest.file);
+        }
+        return freed;
+    }
+
+    /**
+     * Bytes the segments take on disk, live or not.
+     */
+    public synchronized long diskBytes() throws IOException {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.channel.size();
+        }
+        return bytes;
+    }
+
+    @Override
+    public synchronized boolean delete(String hash) throws IOException {
+        if (!index.containsKey(hash)) {
+            return false;
+        }
+        appendTombstone(hash);
+        Location removed = index.remove(hash);
+        totalBytes.addAndGet(-removed.length);
+        removed.segment.liveBytes -= recordSize(hash, removed.length);
+        return true;
+    }
+
+    /* append a tombstone for this hash; called holding the lock */
+    private void appendTombstone(String hash) throws IOException {
+        byte[] hashBytes = hash.getBytes(StandardCharsets.UTF_8);
+        rollIfFull(RECORD_HEADER_SIZE + hashBytes.length);
+
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(hashBytes.length).putInt(TOMBSTONE).putInt(0);
+        header.flip();
+
+        long position = active.writePosition;
+        writeFully(active.channel, position, header, ByteBuffer.wrap(hashBytes));
+        active.writePosition += RECORD_HEADER_SIZE + hashBytes.length;
+
+        activeEntries.add(new Entry(hash, active.writePosition, TOMBSTONE));
+        active.liveBytes += recordSize(hash, 0);
+    }
+
+    @Override
+    public long compact() throws IOException {
+        long freed = 0;
+        for (Segment segment : sparseSegments()) {
+            freed += compact(segment);
+        }
+        if (freed > 0) {
+            logger.info("Compaction freed " + freed + " bytes");
+        }
+        return freed;
+    }
+
+    private synchronized List<Segment> sparseSegments() {
+        List<Segment> sparse = new ArrayList<Segment>();
+        for (Segment segment : segments) {
+            if (segment != active && segment.liveBytes < segment.writePosition * MIN_LIVE_RATIO) {
+                sparse.add(segment);
+            }
+        }
+        return sparse;
+    }
+
+    /* move the live records of a sealed segment to the newest one, then delete it */
+    private long compact(Segment segment) throws IOException {
+        List<Entry> entries = readFooter(segment);
+        if (entries == null) {
+            return 0;
+        }
+        for (int start = 0; start < entries.size(); start += COMPACT_BATCH) {
+            synchronized (this) {
+                if (!segments.contains(segment)) {
+                    return 0;
+                }
+                boolean oldest = segments.get(0) == segment;
+                for (Entry entry : entries.subList(start, Math.min(entries.size(), start + COMPACT_BATCH))) {
+                    Location location = index.get(entry.hash);
+                    if (entry.length == TOMBSTONE) {
+                        if (location == null && !oldest) {
+                            appendTombstone(entry.hash);
+                        }
+                    } else if (location != null && location.segment == segment && location.offset == entry.offset) {
+                        append(entry.hash, get(entry.hash));
+                    }
+                }
+            }
+        }
+
+        synchronized (this) {
+            /* the copies must be on disk before the originals are gone */
+            active.channel.force(false);
+            segments.remove(segment);
+            long freed = segment.channel.size();
+            segment.channel.close();
+            if (!segment.file.delete()) {
+                throw new IOException("Cannot delete segment " + segment.file);
+            }
+            return freed;
+        }
+    }
+
+    @Override
+    public Iterator<String> hashes() {
+        return Collections.unmodifiableSet(index.keySet()).iterator();
+    }
+
+    @Override
+    public ByteString get(String hash) throws IOException {
+        Location location = index.get(hash);
+        if (location == null) {
+            return null;
+        }
+
+        MappedByteBuffer mapped = location.segment.mapped;
+        if (mapped != null) {
+            ByteBuffer data = mapped.duplicate();
+            data.position((int) location.offset);
+            data.limit((int) location.offset + location.length);
+            return UnsafeByteOperations.unsafeWrap(data.slice());
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(location.length);
+        readFully(location.segment.channel, location.offset, data);
+        data.flip();
+        return UnsafeByteOperations.unsafeWrap(data);
+    }
+
+    @Override
+    public boolean contains(String hash) {
+        return index.containsKey(hash);
+    }
+
+    @Override
+    public long count() {
+        return index.size();
+    }
+
+    @Override
+    public long bytes() {
+        return totalBytes.get();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writeFooter(active, activeEntries);
+        for (Segment segment : segments) {
+            segment.channel.close();
+        }
+    }
+
+    /* bytes of the record of a block; hashes are Base64, so one byte per char */
+    private static long recordSize(String hash, int length) {
+        return RECORD_HEADER_SIZE + hash.length() + length;
+    }
+
+    /* roll over to a new segment if a record of this size does not fit in the active one */
+    private void rollIfFull(long recordSize) throws IOException {
+        if (active.writePosition > 0 && active.writePosition + recordSize > segmentSize) {
+            roll();
+        }
+    }
+
+    /* seal the active segment and start appending to a new one */
+    private void roll() throws IOException {
+        writeFooter(active, activeEntries);
+        active.map();
+        active = createSegment(active.id + 1);
+        activeEntries = new ArrayList<Entry>();
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        Segment segment = new Segment(id, new File(dir, String.format("%016d%s", id, SEGMENT_SUFFIX)));
+        segments.add(segment);
+        return segment;
+    }
+
+    private static long segmentId(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static void writeFooter(Segment segment, List<Entry> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Entry entry : entries) {
+            byte[] hashBytes = entry.hash.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(hashBytes.length);
+            out.write(hashBytes);
+            out.writeLong(entry.offset);
+            out.writeInt(entry.length);
+        }
+        out.writeLong(segment.writePosition);
+        out.writeInt(entries.size());
+        out.writeLong(FOOTER_MAGIC);
+        out.flush();
+
+        writeFully(segment.channel, segment.writePosition, ByteBuffer.wrap(bytes.toByteArray()));
+        segment.channel.force(true);
+        segment.synced = segment.writePosition;
+    }
+
+    /*
+     * Read the footer of a sealed segment, or return null if the segment
+     * has none. On success the segment's write position is set to the
+     * start of the footer.
+     */
+    private static List<Entry> readFooter(Segment segment) throws IOException {
+        long size = segment.channel.size();
+        if (size < TRAILER_SIZE) {
+            return null;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        readFully(segment.channel, size - TRAILER_SIZE, trailer);
+        trailer.flip();
+        long footerOffset = trailer.getLong();
+        int count = trailer.getInt();
+        if (trailer.getLong() != FOOTER_MAGIC || footerOffset < 0 || footerOffset > size - TRAILER_SIZE) {
+            return null;
+        }
+
+        ByteBuffer footer = ByteBuffer.allocate((int) (size - TRAILER_SIZE - footerOffset));
+        readFully(segment.channel, footerOffset, footer);
+        footer.flip();
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] hashBytes = new byte[footer.getShort()];
+            footer.get(hashBytes);
+            entries.add(new Entry(new String(hashBytes, StandardCharsets.UTF_8), footer.getLong(), footer.getInt()));
+        }
+        segment.writePosition = footerOffset;
+        return entries;
+    }
+
+    /*
+     * Read an unsealed segment record by record, cutting it off at the
+     * first record that is incomplete or fails its checksum.
+     */
+    private static List<Entry> scan(Segment segment) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        long size = segment.channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(segment.channel, position, header);
+            header.flip();
+            int hashLength = header.getInt();
+            int dataLength = header.getInt();
+            int checksum = header.getInt();
+            int bodyLength = hashLength + Math.max(dataLength, 0);
+            if (hashLength <= 0 || hashLength > MAX_HASH_LENGTH || dataLength < TOMBSTONE
+                    || position + RECORD_HEADER_SIZE + bodyLength > size) {
+                break;
+            }
+
+            ByteBuffer body = ByteBuffer.allocate(bodyLength);
+            readFully(segment.channel, position + RECORD_HEADER_SIZE, body);
+            CRC32 crc = new CRC32();
+            crc.update(body.array(), hashLength, bodyLength - hashLength);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            String hash = new String(body.array(), 0, hashLength, StandardCharsets.UTF_8);
+            entries.add(new Entry(hash, position + RECORD_HEADER_SIZE + hashLength, dataLength));
+            position += RECORD_HEADER_SIZE + bodyLength;
+        }
+
+        if (position < size) {
+            logger.warning("Discarding " + (size - position) + " trailing bytes of " + segment.file.getName());
+            segment.channel.truncate(position);
+        }
+        segment.writePosition = position;
+        return entries;
+    }
+
+    private static void writeFully(FileChannel channel, long position, ByteBuffer... buffers) throws IOException {
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of segment at " + position);
+            }
+            position += n;
+        }
+    }
+
+    private static final class Segment {
+        final long id;
+        final File file;
+        final FileChannel channel;
+        long writePosition;
+        /* bytes of the records the index points into, guarded by the storage */
+        long liveBytes;
+        /* the records before this position are on disk */
+        volatile long synced;
+
+        /* the record area of a sealed segment, or null while it is written */
+        volatile MappedByteBuffer mapped;
+
+        Segment(long id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        void map() throws IOException {
+            if (writePosition <= Integer.MAX_VALUE) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, writePosition);
+            }
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final long offset;
+        final int length;
+
+        Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class Entry {
+        final String hash;
+        final long offset;
+        final int length;
+
+        Entry(String hash, long offset, int length) {
+            this.hash = hash;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
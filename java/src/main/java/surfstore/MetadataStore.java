@@ -2,12 +2,37 @@ package surfstore;
 
 import java.util.*;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
@@ -22,7 +47,15 @@ import surfstore.SurfStoreBasic.Block;
 import surfstore.SurfStoreBasic.Block.Builder;
 
 
+import surfstore.SurfStoreBasic.AppendRequest;
+import surfstore.SurfStoreBasic.AppendResponse;
+import surfstore.SurfStoreBasic.DeleteResult;
 import surfstore.SurfStoreBasic.FileInfo;
+import surfstore.SurfStoreBasic.FileInfoList;
+import surfstore.SurfStoreBasic.LogEntry;
+import surfstore.SurfStoreBasic.LogPosition;
+import surfstore.SurfStoreBasic.SimpleAnswer;
+import surfstore.SurfStoreBasic.SnapshotChunk;
 //import surfstore.SurfStoreBasic.FileInfo.Builder;
 
 import surfstore.SurfStoreBasic.WriteResult;
@@ -35,97 +68,170 @@ public final class MetadataStore {
 
     protected Server server;
     protected ConfigReader config;
+    protected WriteAheadLog log;
+    protected ScheduledExecutorService snapshotter;
     
-    private static  ManagedChannel blockChannel;
-    private static  BlockStoreGrpc.BlockStoreBlockingStub blockStub;
+    protected BlockCluster blockCluster;
     
     /* distributed system */
-    private static ManagedChannel metadataChannel1;
-    private static MetadataStoreGrpc.MetadataStoreBlockingStub metadataStub1;
-
-    private static ManagedChannel metadataChannel2;
-    private static MetadataStoreGrpc.MetadataStoreBlockingStub metadataStub2;
-  
-    private static  boolean leadIng;
-
-    public MetadataStore(ConfigReader config, int assignedId) {
+    private final boolean leadIng;
+    protected Replicator replicator;
+    protected ReadIndex readIndex;
+    protected long maxStaleness;
+
+    /**
+     * @param maxStaleness how many milliseconds a follower may go without
+     *                     hearing from the leader and still answer reads
+     *                     from its own state; 0 makes every follower read
+     *                     linearizable
+     * @param catchUpRate  bytes per second the leader may send a follower
+     *                     that is catching up
+     */
+    public MetadataStore(ConfigReader config, int assignedId, WriteAheadLog log, long maxStaleness,
+                         double catchUpRate) {
         
-        if(config.getNumMetadataServers() > 1)       // we have a distributed version
-        {
-            int leaderNumber = config.getLeaderNum();
+        this.leadIng = (config.getLeaderNum() == assignedId);
 
-            int metaOne = config.getMetadataPort(1);
-            int metaTwo = config.getMetadataPort(2);
-            int metaThree = config.getMetadataPort(3);
-
-            if(leaderNumber == assignedId)          // this server is the leader
-            {
-                this.leadIng = true;
-
-                if (leaderNumber == 1){
-              
-                    this.metadataChannel1 = ManagedChannelBuilder.forAddress("127.0.0.1", metaTwo
-                      .usePlaintext(true).build();
-                    this.metadataStub1 = MetadataStoreGrpc.newBlockingStub(metadataChannel1);
-
-                    this.metadataChannel2 = ManagedChannelBuilder.forAddress("127.0.0.1", metaThree
-                      .usePlaintext(true).build();
-                    this.metadataStub2 = MetadataStoreGrpc.newBlockingStub(metadataChannel2);
-                }
-
-                else if (leaderNumber == 2) {
-
-                    this.metadataChannel1 = ManagedChannelBuilder.forAddress("127.0.0.1", metaOne
-                      .usePlaintext(true).build();
-                    this.metadataStub1 = MetadataStoreGrpc.newBlockingStub(metadataChannel1);
-
-                    this.metadataChannel2 = ManagedChannelBuilder.forAddress("127.0.0.1", metaThree
-                      .usePlaintext(true).build();
-                    this.metadataStub2 = MetadataStoreGrpc.newBlockingStub(metadataChannel2);
-              
-                }
-
-                else if (leaderNumber == 3) {
-
-                    this.metadataChannel1 = ManagedChannelBuilder.forAddress("127.0.0.1", metaTwo
-                      .usePlaintext(true).build();
-                    this.metadataStub1 = MetadataStoreGrpc.newBlockingStub(metadataChannel1);
+        if(config.getNumMetadataServers() > 1 && leadIng)       // we have a distributed version and lead it
+        {
+            Map<Integer, MetadataStoreGrpc.MetadataStoreStub> followers =
+                    new TreeMap<Integer, MetadataStoreGrpc.MetadataStoreStub>();
 
-                    this.metadataChannel2 = ManagedChannelBuilder.forAddress("127.0.0.1", metaOne
+            for (int id = 1; id <= config.getNumMetadataServers(); id++) {
+                if (id != assignedId) {
+                    ManagedChannel channel = ManagedChannelBuilder.forAddress("127.0.0.1", config.getMetadataPort(id))
                       .usePlaintext(true).build();
-                    this.metadataStub2 = MetadataStoreGrpc.newBlockingStub(metadataChannel2);
-              
+                    followers.put(id, MetadataStoreGrpc.newStub(channel));
                 }
             }
+            this.replicator = new Replicator(log, followers, catchUpRate);
+        }
 
-            else                                    // this server is not leader
-            {
-                this.leadIng = false;
-
-                this.metadataChannel1 = null;
-                this.metadataStub1 = null;
-
-                this.metadataChannel2 = null;
-                this.metadataStub2 = null;
-            }
-
-
+        else if(config.getNumMetadataServers() > 1)            // a follower checks reads with the leader
+        {
+            ManagedChannel channel = ManagedChannelBuilder.forAddress("127.0.0.1", config.getMetadataPort(config.getLeaderNum()))
+              .usePlaintext(true).build();
+            this.readIndex = new ReadIndex(MetadataStoreGrpc.newFutureStub(channel));
         }
 
-       
-        this.blockChannel = ManagedChannelBuilder.forAddress("127.0.0.1", config.getBlockPort())
-                .usePlaintext(true).build();
-        this.blockStub = BlockStoreGrpc.newBlockingStub(blockChannel);
+        this.blockCluster = new BlockCluster(config);
     	  this.config = config;
+        this.log = log;
+        this.maxStaleness = maxStaleness;
 	}
 
-    private void start(int port, int numThreads) throws IOException {
+    private void start(int port, int numThreads, int snapshotInterval, int statsInterval,
+                       final AccessLog accessLog, final KnownBlocks knownBlocks, int gcInterval,
+                       long gcGrace) throws IOException {
+        final Stats stats = new Stats();
+        final MetadataStoreImpl impl = new MetadataStoreImpl(leadIng, blockCluster, log, replicator, readIndex,
+                maxStaleness, stats, accessLog, knownBlocks, gcGrace);
+        /* a follower applies the rest of its log once the leader says it is committed */
+        log.recover(impl.storedFile, leadIng);
+        impl.lastApplied = log.snapshotIndex();
+        /* every committed blocklist was checked against the BlockStores when it was written */
+        for (Info info : impl.storedFile.values()) {
+            if (!info.hashList.equals(MetadataStoreImpl.DELETED)) {
+                knownBlocks.addAll(info.hashList);
+            }
+        }
+        if (replicator != null) {
+            replicator.start();
+        }
+
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(numThreads);
         server = ServerBuilder.forPort(port)
-                .addService(new MetadataStoreImpl())
-                .executor(Executors.newFixedThreadPool(numThreads))
+                .addService(ServerInterceptors.intercept(impl, new StatsInterceptor(stats)))
+                .executor(executor)
                 .build()
                 .start();
         logger.info("Server started, listening on " + port);
+
+        stats.executorGauges(executor);
+        stats.gauge("files", new Stats.Gauge() {
+            @Override
+            public long value() {
+                return impl.storedFile.size();
+            }
+        });
+        stats.gauge("known_blocks", new Stats.Gauge() {
+            @Override
+            public long value() {
+                return knownBlocks.size();
+            }
+        });
+        stats.gauge("gc.deleted_blocks", new Stats.Gauge() {
+            @Override
+            public long value() {
+                return impl.garbageCollector.deleted();
+            }
+        });
+        stats.gauge("access_log.dropped", new Stats.Gauge() {
+            @Override
+            public long value() {
+                return accessLog.dropped();
+            }
+        });
+        stats.gauge("log.last_index", new Stats.Gauge() {
+            @Override
+            public long value() {
+                return log.lastIndex();
+            }
+        });
+        stats.gauge("log.durable_index", new Stats.Gauge() {
+            @Override
+            public long value() {
+                return log.durableIndex();
+            }
+        });
+        if (replicator != null) {
+            stats.gauge("log.commit_index", new Stats.Gauge() {
+                @Override
+                public long value() {
+                    return replicator.commitIndex();
+                }
+            });
+        }
+        if (statsInterval > 0) {
+            stats.logEvery(statsInterval, logger);
+        }
+
+        snapshotter = Executors.newSingleThreadScheduledExecutor();
+        if (snapshotInterval > 0) {
+            snapshotter.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        log.snapshot(impl.storedFile, impl.appliedIndex());
+                        /* keep what lagging followers still need */
+                        long trim = log.snapshotIndex();
+                        if (replicator != null) {
+                            trim = replicator.trimIndex(trim);
+                        }
+                        log.trimTail(trim);
+                    } catch (IOException e) {
+                        logger.warning("Snapshot failed: " + e);
+                    }
+                }
+            }, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        }
+
+        if (leadIng && gcInterval > 0) {
+            impl.gcExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    if (impl.crushed) {
+                        return;
+                    }
+                    try {
+                        impl.garbageCollector.collect();
+                    } catch (RuntimeException e) {
+                        logger.warning("Garbage collection failed: " + e);
+                    }
+                }
+            }, gcInterval, gcInterval, TimeUnit.SECONDS);
+        }
+
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
@@ -139,6 +245,18 @@ public final class MetadataStore {
     private void stop() {
         if (server != null) {
             server.shutdown();
+            snapshotter.shutdownNow();
+            if (replicator != null) {
+                replicator.stop();
+            }
+            try {
+                server.awaitTermination();
+                log.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -156,7 +274,37 @@ public final class MetadataStore {
         parser.addArgument("-n", "--number").type(Integer.class).setDefault(1)
                 .help("Set which number this server is");
         parser.addArgument("-t", "--threads").type(Integer.class).setDefault(10)
-                .help("Maximum number of concurrent threads");
+                .help("Number of worker threads; handlers never wait on other servers, so this "
+                        + "does not limit how many calls can be in progress");
+        parser.addArgument("-d", "--data-dir").type(String.class)
+                .help("Directory holding the write-ahead log and snapshots (default metadata<number>)");
+        parser.addArgument("--snapshot-interval").type(Integer.class).setDefault(60)
+                .help("Seconds between snapshots of the metadata; 0 turns them off, and the log then "
+                        + "grows without bound");
+        parser.addArgument("--max-staleness").type(Long.class).setDefault(0L)
+                .help("Milliseconds a follower may go without hearing from the leader and still answer "
+                        + "ReadFile from its own state; 0 makes every read linearizable");
+        parser.addArgument("--stats-interval").type(Integer.class).setDefault(60)
+                .help("Seconds between logged stats reports; 0 turns them off");
+        parser.addArgument("--access-log-rate").type(Double.class).setDefault(0.01)
+                .help("Fraction of calls written to the access log; 0 turns it off");
+        parser.addArgument("--access-log-level").choices("FINEST", "FINER", "FINE", "CONFIG", "INFO")
+                .setDefault("INFO")
+                .help("Level of the access log entries; calls are not sampled if the surfstore.access logger drops it");
+        parser.addArgument("--catchup-rate").type(Integer.class).setDefault(32)
+                .help("Megabytes per second the leader may send a follower that is catching up");
+        parser.addArgument("--known-blocks").type(Integer.class).setDefault(1000000)
+                .help("Most block hashes remembered as stored, so ModifyFile need not ask the BlockStores "
+                        + "about them again; 0 turns this off");
+        parser.addArgument("--known-blocks-ttl").type(Integer.class).setDefault(300)
+                .help("Seconds a block is remembered as stored after the BlockStores last confirmed it; "
+                        + "must be less than --gc-grace");
+        parser.addArgument("--gc-interval").type(Integer.class).setDefault(600)
+                .help("Seconds between rounds of deleting the blocks no file refers to, at most twice "
+                        + "--gc-grace; 0 only runs them when a client asks");
+        parser.addArgument("--gc-grace").type(Integer.class).setDefault(600)
+                .help("Seconds an unused block is kept even if no file refers to it; clients must commit "
+                        + "a file within this long of uploading its blocks");
 
         Namespace res = null;
         try {
@@ -183,36 +331,145 @@ public final class MetadataStore {
             throw new RuntimeException(String.format("metadata%d not in config file", c_args.getInt("number")));
         }
 
-        final MetadataStore server = new MetadataStore(config, myid);
-        server.start(config.getMetadataPort(c_args.getInt("number")), c_args.getInt("threads"));
+        String dataDir = c_args.getString("data_dir");
+        if (dataDir == null) {
+            dataDir = "metadata" + myid;
+        }
+
+        /* a BlockStore stops tracking block use if it is not asked about it for twice the grace period */
+        if (c_args.getInt("gc_interval") > 2 * c_args.getInt("gc_grace")) {
+            throw new RuntimeException("--gc-interval must be at most twice --gc-grace");
+        }
+        /* a block KnownBlocks vouches for must have been used recently enough that no round deletes it */
+        if (c_args.getInt("known_blocks") > 0 && c_args.getInt("known_blocks_ttl") >= c_args.getInt("gc_grace")) {
+            throw new RuntimeException("--known-blocks-ttl must be less than --gc-grace");
+        }
+
+        final MetadataStore server = new MetadataStore(config, myid, new WriteAheadLog(new File(dataDir)),
+                c_args.getLong("max_staleness"), c_args.getInt("catchup_rate") * 1e6);
+        server.start(config.getMetadataPort(c_args.getInt("number")), c_args.getInt("threads"),
+                c_args.getInt("snapshot_interval"), c_args.getInt("stats_interval"),
+                new AccessLog(c_args.getDouble("access_log_rate"), Level.parse(c_args.getString("access_log_level"))),
+                new KnownBlocks(c_args.getInt("known_blocks"), c_args.getInt("known_blocks_ttl") * 1000L),
+                c_args.getInt("gc_interval"), c_args.getInt("gc_grace") * 1000L);
         server.blockUntilShutdown();
     }
    
+    /**
+     * The stored state of one file. Instances are never modified; a write
+     * replaces the map entry with a new Info, so a reader always sees a
+     * version together with the blocklist written with it.
+     */
     public static class Info{
        
-        public int version;
-        public List<String> hashList;      
+        public final int version;
+        public final List<String> hashList;
   
-        public Info(){
-            this.version = 0;
-            this.hashList = new ArrayList<String>();
+        public Info(int version, List<String> hashList){
+            this.version = version;
+            this.hashList = Collections.unmodifiableList(new ArrayList<String>(hashList));
         }
 
     }
 
     static class MetadataStoreImpl extends MetadataStoreGrpc.MetadataStoreImplBase {
         
-       		protected Map<String, Info> storedFile;
+          /* blocklist stored for a deleted file */
+          protected static final List<String> DELETED = Collections.singletonList("0");
+          /* files per ReadFiles and ListFiles message */
+          protected static final int FILE_BATCH = 1000;
+
+       		protected ConcurrentMap<String, Info> storedFile;
+          /* the write in progress for each file, not yet in storedFile */
+          protected ConcurrentMap<String, Info> pending;
+          /* log indexes of writes not yet in storedFile or given up on, guarded by itself */
+          protected TreeSet<Long> unapplied;
           protected boolean crushed;
+          protected WriteAheadLog log;
+          protected Replicator replicator;
+          protected ReadIndex readIndex;
+          protected long maxStalenessNanos;
+          /* last log index this follower has applied to storedFile, guarded by this */
+          protected long lastApplied;
+          /* when this follower last heard from the leader */
+          protected volatile long lastContact;
+          protected Stats stats;
+          protected AccessLog accessLog;
+          protected KnownBlocks knownBlocks;
+          /* reads waiting for the log to reach an index, guarded by this */
+          protected TreeMap<Long, SettableFuture<Long>> applying;
+          /* times out reads waiting for the leader; null on the leader */
+          protected ScheduledExecutorService readTimer;
+          protected BlockCluster blockCluster;
+          protected final boolean leadIng;
+          protected GarbageCollector garbageCollector;
+          /* runs garbage collection rounds, one at a time */
+          protected ListeningScheduledExecutorService gcExecutor;
           
 
-      	public MetadataStoreImpl() {
+      	public MetadataStoreImpl(boolean leadIng, BlockCluster blockCluster, WriteAheadLog log, Replicator replicator,
+                                 ReadIndex readIndex, long maxStaleness, Stats stats, AccessLog accessLog,
+                                 KnownBlocks knownBlocks, long gcGrace) {
 		      super();
-			    this.storedFile = new HashMap<String, Info>();
+			    this.storedFile = new ConcurrentHashMap<String, Info>();
+          this.pending = new ConcurrentHashMap<String, Info>();
+          this.unapplied = new TreeSet<Long>();
           this.crushed = false;
+          this.log = log;
+          this.replicator = replicator;
+          this.readIndex = readIndex;
+          this.maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(maxStaleness);
+          this.lastContact = System.nanoTime() - this.maxStalenessNanos - 1;
+          this.stats = stats;
+          this.accessLog = accessLog;
+          this.knownBlocks = knownBlocks;
+          this.leadIng = leadIng;
+          this.blockCluster = blockCluster;
+          this.applying = new TreeMap<Long, SettableFuture<Long>>();
+          this.garbageCollector = new GarbageCollector(blockCluster, storedFile, pending, knownBlocks, gcGrace);
+          this.gcExecutor = MoreExecutors.listeningDecorator(Executors.newSingleThreadScheduledExecutor(
+                  new ThreadFactory() {
+                      @Override
+                      public Thread newThread(Runnable r) {
+                          Thread thread = new Thread(r, "garbage-collector");
+                          thread.setDaemon(true);
+                          return thread;
+                      }
+                  }));
+          if (readIndex != null) {
+              this.readTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                  @Override
+                  public Thread newThread(Runnable r) {
+                      Thread thread = new Thread(r, "read-timer");
+                      thread.setDaemon(true);
+                      return thread;
+                  }
+              });
+          }
           
 		    }
 
+        /*
+         * Handlers never wait on another server or on the disk: each one
+         * builds a future of its answer and sends it from whichever thread
+         * completes the future (a gRPC client thread, or the log's writer
+         * thread), so a worker thread is only busy while it computes.
+         */
+        protected static <T> void respond(ListenableFuture<T> result, final StreamObserver<T> responseObserver) {
+            Futures.addCallback(result, new FutureCallback<T>() {
+                @Override
+                public void onSuccess(T response) {
+                    responseObserver.onNext(response);
+                    responseObserver.onCompleted();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    responseObserver.onError(Status.fromThrowable(t).asRuntimeException());
+                }
+            });
+        }
+
         @Override
         public void ping(Empty req, final StreamObserver<Empty> responseObserver) {
             Empty response = Empty.newBuilder().build();
@@ -220,237 +477,717 @@ public final class MetadataStore {
             responseObserver.onCompleted();
         }
 
-        // TODO: Implement the other RPCs!
-
         @Override
         public void readFile(surfstore.SurfStoreBasic.FileInfo request,
           		     io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.FileInfo> responseObserver) {
-          //asyncUnimplementedUnaryCall(METHOD_READ_FILE, responseObserver);
 
-                logger.info("Read file with name:" + request.getFilename());
+                accessLog.log("ReadFile", "file", request.getFilename());
 
-          	String fileName = request.getFilename();
-    
-          	FileInfo.Builder builder = FileInfo.newBuilder();
-                
-                if(fileName != null && storedFile.containsKey(fileName) == true )
+                final String fileName = request.getFilename();
+
+                if(mustCatchUp())
+                {
+                   respond(Futures.transform(catchUpWithLeader(), new Function<Long, FileInfo>() {
+                       @Override
+                       public FileInfo apply(Long index) {
+                           return lookup(fileName);
+                       }
+                   }), responseObserver);
+                }
+                else
                 {
-                   Info existingFile = storedFile.get(fileName);
+                   responseObserver.onNext(lookup(fileName));
+                   responseObserver.onCompleted();
+                }
+        }
+
+        /* whether this follower must check with the leader before answering a read */
+        protected boolean mustCatchUp() {
+                return readIndex != null && !crushed && System.nanoTime() - lastContact > maxStalenessNanos;
+        }
+
+        @Override
+        public void readFiles(surfstore.SurfStoreBasic.FileInfoList request,
+                  io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.FileInfoList> responseObserver) {
+
+            accessLog.log("ReadFiles", "files", request.getFilesCount());
 
-                   int version = existingFile.version;
-                   
-                   builder.setFilename(fileName);
-                   builder.setVersion(version);
-                   builder.addAllBlocklist(new ArrayList<String>(existingFile.hashList));
+            Iterator<FileInfo> files = Iterators.transform(request.getFilesList().iterator(),
+                    new Function<FileInfo, FileInfo>() {
+                        @Override
+                        public FileInfo apply(FileInfo requested) {
+                            return lookup(requested.getFilename());
+                        }
+                    });
+            streamFiles(files, responseObserver);
+        }
 
+        @Override
+        public void listFiles(surfstore.SurfStoreBasic.ListRequest request,
+                  io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.FileInfoList> responseObserver) {
+
+            accessLog.log("ListFiles", "prefix", request.getPrefix());
+
+            final String prefix = request.getPrefix();
+            final int sinceVersion = request.getSinceVersion();
+            Iterator<Map.Entry<String, Info>> matching = Iterators.filter(storedFile.entrySet().iterator(),
+                    new Predicate<Map.Entry<String, Info>>() {
+                        @Override
+                        public boolean apply(Map.Entry<String, Info> entry) {
+                            return entry.getKey().startsWith(prefix) && entry.getValue().version > sinceVersion;
+                        }
+                    });
+            Iterator<FileInfo> files = Iterators.transform(matching, new Function<Map.Entry<String, Info>, FileInfo>() {
+                @Override
+                public FileInfo apply(Map.Entry<String, Info> entry) {
+                    return WriteAheadLog.toFileInfo(entry.getKey(), entry.getValue());
+                }
+            });
+            streamFiles(files, responseObserver);
+        }
+
+        /*
+         * Send files in batches of FILE_BATCH as they are read from the
+         * map, only while the call is ready, so a listing of the whole map
+         * never sits in memory. A follower that must check with the leader
+         * first only starts once it has caught up.
+         */
+        protected void streamFiles(final Iterator<FileInfo> files, StreamObserver<FileInfoList> responseObserver) {
+            final ServerCallStreamObserver<FileInfoList> call = (ServerCallStreamObserver<FileInfoList>) responseObserver;
+            final ListenableFuture<Long> caughtUp = mustCatchUp()
+                    ? catchUpWithLeader() : Futures.immediateFuture(0L);
+
+            /* runs on gRPC threads and on the thread that completes caughtUp, one at a time */
+            Runnable sender = new Runnable() {
+                private boolean done = false;
+
+                @Override
+                public synchronized void run() {
+                    if (done || !caughtUp.isDone()) {
+                        return;
+                    }
+                    try {
+                        Futures.getUnchecked(caughtUp);
+                    } catch (UncheckedExecutionException e) {
+                        done = true;
+                        call.onError(Status.fromThrowable(e.getCause()).asRuntimeException());
+                        return;
+                    }
+                    while (!done && call.isReady()) {
+                        if (call.isCancelled()) {
+                            done = true;
+                            return;
+                        }
+                        FileInfoList.Builder batch = FileInfoList.newBuilder();
+                        while (files.hasNext() && batch.getFilesCount() < FILE_BATCH) {
+                            batch.addFiles(files.next());
+                        }
+                        if (batch.getFilesCount() > 0) {
+                            call.onNext(batch.build());
+                        }
+                        if (!files.hasNext()) {
+                            done = true;
+                            call.onCompleted();
+                        }
+                    }
+                }
+            };
+            call.setOnReadyHandler(sender);
+            caughtUp.addListener(sender, MoreExecutors.directExecutor());
+        }
+
+        protected FileInfo lookup(String fileName) {
+                Info existingFile = storedFile.get(fileName);
+    
+          	FileInfo.Builder builder = FileInfo.newBuilder();
+                builder.setFilename(fileName);
+
+                if(existingFile != null)
+                {
+                   builder.setVersion(existingFile.version);
+                   builder.addAllBlocklist(existingFile.hashList);
                 }
 
                 else // the file does not exist, return version 0
                 {
-                                    
-                   builder.setFilename(fileName);
                    builder.setVersion(0);
-                             
                 }
                 
-	        FileInfo response = builder.build();
-                responseObserver.onNext(response);
-                responseObserver.onCompleted();
+	        return builder.build();
+        }
+
+        /*
+         * A future that completes once this follower's log has every write
+         * the leader had committed when it was called, or fails after a
+         * second. A crashed follower sends no RPCs and answers reads from
+         * whatever it has. Reads share the futures of the leader's index
+         * and of the log position, so one that times out must not cancel
+         * them.
+         */
+        protected ListenableFuture<Long> catchUpWithLeader() {
+            ListenableFuture<Long> leaderIndex = Futures.catching(
+                    Futures.nonCancellationPropagating(readIndex.get()), Throwable.class,
+                    new Function<Throwable, Long>() {
+                        @Override
+                        public Long apply(Throwable t) {
+                            throw Status.UNAVAILABLE.withDescription("Leader unreachable")
+                                    .withCause(t).asRuntimeException();
+                        }
+                    });
+            ListenableFuture<Long> caughtUp = Futures.transformAsync(leaderIndex, new AsyncFunction<Long, Long>() {
+                @Override
+                public ListenableFuture<Long> apply(Long index) {
+                    return Futures.nonCancellationPropagating(applied(index));
+                }
+            });
+            return Futures.catching(Futures.withTimeout(caughtUp, 1, TimeUnit.SECONDS, readTimer),
+                    TimeoutException.class, new Function<TimeoutException, Long>() {
+                        @Override
+                        public Long apply(TimeoutException e) {
+                            throw Status.UNAVAILABLE.withDescription("Follower is behind the leader")
+                                    .asRuntimeException();
+                        }
+                    });
+        }
+
+        /* a future that completes once this follower has applied index */
+        protected synchronized ListenableFuture<Long> applied(long index) {
+            if (lastApplied >= index) {
+                return Futures.immediateFuture(index);
+            }
+            SettableFuture<Long> future = applying.get(index);
+            if (future == null) {
+                future = SettableFuture.create();
+                applying.put(index, future);
+            }
+            return future;
+        }
+
+        /* complete the reads waiting for entries now applied; call without holding the lock */
+        protected void wakeReads() {
+            long index;
+            List<SettableFuture<Long>> done = new ArrayList<SettableFuture<Long>>();
+            synchronized (this) {
+                index = lastApplied;
+                Iterator<SettableFuture<Long>> it = applying.headMap(index, true).values().iterator();
+                while (it.hasNext()) {
+                    done.add(it.next());
+                    it.remove();
+                }
+            }
+            for (SettableFuture<Long> future : done) {
+                future.set(index);
+            }
         }
 
+        /*
+         * Writes never lock. A write reads the current Info, checks the
+         * version against it, and then reserves the file for its new Info
+         * only if no other write holds it and the entry still holds the
+         * Info it checked. If another write to the same file got there
+         * first, the client gets OLD_VERSION, exactly as if it had arrived
+         * second.
+         */
         @Override
         public void modifyFile(surfstore.SurfStoreBasic.FileInfo request,
          		       io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.WriteResult> responseObserver) {
 
-           //asyncUnimplementedUnaryCall(METHOD_MODIFY_FILE, responseObserver);
-	        logger.info("Modify file with name:" + request.getFilename());
-               
+	        accessLog.log("ModifyFile", "file", request.getFilename());
+
+            final int version = request.getVersion();
+            final String fileName = request.getFilename();
+            final List<String> requestBlocklist = request.getBlocklistList();
+
+            final Info existingFile = storedFile.get(fileName);
+            final int currentVersion = (existingFile == null) ? 0 : existingFile.version;
 
-            int version = request.getVersion();
-            String fileName = request.getFilename();
-            List<String> requestBlocklist = new ArrayList<String>(request.getBlocklistList());
-                
-                                
             WriteResult.Builder builder = WriteResult.newBuilder();
+            ListenableFuture<WriteResult> response;
 
-            /* check BlockStore inforamtion */
-            List<String> missingHash = new ArrayList<String>();
+            if(!leadIng)
+            {
+                builder.setResult(WriteResult.Result.NOT_LEADER);
+                builder.setCurrentVersion(currentVersion);
+                response = Futures.immediateFuture(builder.build());
+            }
 
-            for(String eachHash: requestBlocklist)
+            else if(version != currentVersion + 1)                            // fail to modify because of version
             {
-               
-                Block.Builder sentBlock = Block.newBuilder();
-                sentBlock.setHash(eachHash);
-                Block myBlock = sentBlock.build();
+                builder.setResult(WriteResult.Result.OLD_VERSION);
+                builder.setCurrentVersion(currentVersion);
+                response = Futures.immediateFuture(builder.build());
+            }
 
-                if(blockStub.hasBlock(myBlock).getAnswer() == false)
-                {
-                    missingHash.add(eachHash);
+            else
+            {
+                /* check BlockStore inforamtion, then commit if nothing is missing */
+                /* see GarbageCollector for why a write notes the round it trusted KnownBlocks in */
+                final long round;
+                final List<String> unknown;
+                garbageCollector.beginWrite();
+                try {
+                    round = garbageCollector.rounds();
+                    unknown = knownBlocks.unknown(requestBlocklist);
+                } finally {
+                    garbageCollector.endWrite();
                 }
-            }
+                final boolean trusted = unknown.size() < requestBlocklist.size();
 
-             /*check version first*/
-            int currentVersion = 0;
+                response = Futures.transformAsync(findMissingBlocks(unknown),
+                        new AsyncFunction<List<String>, WriteResult>() {
+                    @Override
+                    public ListenableFuture<WriteResult> apply(List<String> missingHash) {
+                        if(missingHash.isEmpty() == false)                       // there is missingblocks
+                        {
+                            return Futures.immediateFuture(missingBlocks(currentVersion, missingHash));
+                        }
+                        return commit(fileName, existingFile, new Info(version, requestBlocklist),
+                                trusted ? round : -1);
+                    }
+                });
+            }
 
-            if(fileName != null && storedFile.containsKey(fileName) == true)  // the file has been created
-            {  
-                Info existingFile = storedFile.get(fileName);
-                currentVersion = existingFile.version;
+            respond(response, responseObserver);
+        }
 
-                if(version == currentVersion + 1)    // version checked
-                {
+        protected static WriteResult missingBlocks(int currentVersion, List<String> missing) {
+            return WriteResult.newBuilder()
+                    .setResult(WriteResult.Result.MISSING_BLOCKS)
+                    .setCurrentVersion(currentVersion)
+                    .addAllMissingBlocks(missing)
+                    .build();
+        }
 
-                    if(missingHash.isEmpty() ==  true)  // missingblock checked
-                    {
-                        existingFile.hashList.clear();   //  clear the blocks inside the Info
-                       
-                        for(String each : requestBlocklist)
-                        {
-                            existingFile.hashList.add(each);
+        /**
+         * Ask the block servers which of the given hashes, the ones not in
+         * knownBlocks, they do not have. The ones they confirm are added to
+         * knownBlocks, so re-committing a mostly unchanged file asks about
+         * its changed blocks only. Each server is only asked about the
+         * hashes the ring places on it, in batches that are all sent at
+         * once, so the cost of the check is a few round trips no matter how
+         * many blocks the file has.
+         */
+        protected ListenableFuture<List<String>> findMissingBlocks(final List<String> unknown) {
+            if (unknown.isEmpty()) {
+                return Futures.immediateFuture(Collections.<String>emptyList());
+            }
+            return Futures.transform(blockCluster.findMissingBlocks(unknown), new Function<List<String>, List<String>>() {
+                @Override
+                public List<String> apply(List<String> missing) {
+                    if (missing.isEmpty()) {
+                        knownBlocks.addAll(unknown);
+                    } else {
+                        Set<String> absent = new HashSet<String>(missing);
+                        List<String> present = new ArrayList<String>(unknown.size() - absent.size());
+                        for (String hash : unknown) {
+                            if (!absent.contains(hash)) {
+                                present.add(hash);
+                            }
                         }
-
-                        existingFile.version = version;
-                                        
-                        builder.setResultValue(0);
-                        builder.setCurrentVersion(currentVersion);   // blockstore checked, verion checked
+                        knownBlocks.addAll(present);
                     }
-                        
-                    else                                // there is missingblocks
-                    {
+                    return missing;
+                }
+            });
+        }
 
-                         builder.setResultValue(2);
-                         builder.setCurrentVersion(currentVersion);
-                         builder.addAllMissingBlocks(new ArrayList<String>(missingHash));
+        @Override
+        public void deleteFile(surfstore.SurfStoreBasic.FileInfo request,
+          		       io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.WriteResult> responseObserver) {
 
-                    }            
+          accessLog.log("DeleteFile", "file", request.getFilename());
 
+                int version = request.getVersion();
+                String fileName = request.getFilename();
 
-                      
-                }
+                Info existingFile = storedFile.get(fileName);
+                int currentVersion = (existingFile == null) ? 0 : existingFile.version;
 
-                else                                                         // fail to modify because of version
+            	WriteResult.Builder builder = WriteResult.newBuilder();
+                
+                if(!leadIng)
                 {
-                                     
-                    builder.setResultValue(1);                                // version check fail with file existed
-                    builder.setCurrentVersion(currentVersion); 
+                     builder.setResult(WriteResult.Result.NOT_LEADER);
+                     builder.setCurrentVersion(currentVersion);
                 }
+                else if(version == currentVersion + 1)
+                {
+                     respond(commit(fileName, existingFile, new Info(version, DELETED), -1), responseObserver);
+                     return;
+                }
+                else
+                {
+                     builder.setResult(WriteResult.Result.OLD_VERSION);             // fail to delete
+                     builder.setCurrentVersion(currentVersion);
+                }
+ 
+                WriteResult response = builder.build();
+                responseObserver.onNext(response);
+                responseObserver.onCompleted();
 
-            
-            }
+        }
 
-            else                                                              //file has not been created, so verion is 0
-            {
-                
-                if(version == currentVersion + 1)    // version checked (version must be 1)
-                {
+        /*
+         * Replace expected (null if the file has never been written) with
+         * updated, unless another write replaced it or is replacing it.
+         * Returns the result of the write either way. The file is reserved
+         * in pending while the write is logged, and updated only becomes
+         * visible once it is in the write-ahead log of this server and, in
+         * distributed mode, of a majority of the servers. A write that
+         * fails leaves expected in place.
+         *
+         * trustedRound is the garbage collection round in which KnownBlocks
+         * vouched for some of the blocks of updated, or -1 if every block
+         * was checked with the BlockStores. If another round has started
+         * since, every block is checked again once the file is reserved.
+         */
+        protected ListenableFuture<WriteResult> commit(final String fileName, Info expected, final Info updated,
+                                                      long trustedRound) {
+            if (pending.putIfAbsent(fileName, updated) != null) {
+                return oldVersion(fileName);
+            }
+            if (storedFile.get(fileName) != expected) {
+                pending.remove(fileName, updated);
+                return oldVersion(fileName);
+            }
+            if (trustedRound < 0 || garbageCollector.rounds() == trustedRound) {
+                return append(fileName, updated);
+            }
 
-                    if(missingHash.isEmpty() ==  true)  // missingblock checked and build a new file 
-                    {
-                        Info newFile = new Info();
-                        newFile.version = version;
-                        newFile.hashList = new ArrayList<String>(requestBlocklist);
-                                             
-                        storedFile.put(fileName,newFile);
+            /* a garbage collection round may have deleted a block KnownBlocks vouched for */
+            final int currentVersion = (expected == null) ? 0 : expected.version;
+            ListenableFuture<List<String>> checked = Futures.catching(
+                    blockCluster.findMissingBlocks(updated.hashList), Throwable.class,
+                    new Function<Throwable, List<String>>() {
+                        @Override
+                        public List<String> apply(Throwable t) {
+                            pending.remove(fileName, updated);
+                            throw Status.fromThrowable(t).asRuntimeException();
+                        }
+                    });
+            return Futures.transformAsync(checked, new AsyncFunction<List<String>, WriteResult>() {
+                @Override
+                public ListenableFuture<WriteResult> apply(List<String> missing) {
+                    if (!missing.isEmpty()) {
+                        pending.remove(fileName, updated);
+                        return Futures.immediateFuture(missingBlocks(currentVersion, missing));
+                    }
+                    return append(fileName, updated);
+                }
+            });
+        }
 
-                        builder.setResultValue(0);                                
-                        builder.setCurrentVersion(newFile.version); 
+        /* log a reserved write and make it visible once it is durable */
+        protected ListenableFuture<WriteResult> append(final String fileName, final Info updated) {
+            ListenableFuture<LogEntry> logged;
+            final long index;
+            synchronized (unapplied) {
+                logged = log.append(WriteAheadLog.toFileInfo(fileName, updated));
+                index = log.lastIndex();
+                unapplied.add(index);
+            }
+            ListenableFuture<?> durable = logged;
+            if (replicator != null) {
+                durable = Futures.transformAsync(logged, new AsyncFunction<LogEntry, Long>() {
+                    @Override
+                    public ListenableFuture<Long> apply(LogEntry entry) {
+                        replicator.wake();
+                        return replicator.replicated(entry.getIndex());
                     }
-                        
-                    else                                // there is missingblocks, dont create file and send 0 back
-                    {
+                });
+            }
+            ListenableFuture<WriteResult> result = Futures.transform(durable, new Function<Object, WriteResult>() {
+                @Override
+                public WriteResult apply(Object ignored) {
+                    storedFile.put(fileName, updated);
+                    release(fileName, updated, index);
+                    return WriteResult.newBuilder()
+                            .setResult(WriteResult.Result.OK)
+                            .setCurrentVersion(updated.version)
+                            .build();
+                }
+            });
+            return Futures.catching(result, Throwable.class, new Function<Throwable, WriteResult>() {
+                @Override
+                public WriteResult apply(Throwable t) {
+                    release(fileName, updated, index);
+                    throw Status.INTERNAL.withDescription("Write-ahead log failed")
+                            .withCause(t).asRuntimeException();
+                }
+            });
+        }
 
-                         builder.setResultValue(2);
-                         builder.setCurrentVersion(currentVersion);
-                         builder.addAllMissingBlocks(new ArrayList<String>(missingHash));
+        protected ListenableFuture<WriteResult> oldVersion(String fileName) {
+            Info current = storedFile.get(fileName);
+            return Futures.immediateFuture(WriteResult.newBuilder()
+                    .setResult(WriteResult.Result.OLD_VERSION)
+                    .setCurrentVersion(current == null ? 0 : current.version)
+                    .build());
+        }
 
-                    }            
+        /* end the reservation of a write that is now in storedFile, or was given up on */
+        protected void release(String fileName, Info updated, long index) {
+            pending.remove(fileName, updated);
+            synchronized (unapplied) {
+                unapplied.remove(index);
+            }
+        }
 
+        /**
+         * The last log index up to which every entry is in storedFile, so
+         * a snapshot of storedFile covers it.
+         */
+        protected long appliedIndex() {
+            if (!leadIng) {
+                synchronized (this) {
+                    return lastApplied;
+                }
+            }
+            synchronized (unapplied) {
+                return unapplied.isEmpty() ? log.lastIndex() : unapplied.first() - 1;
+            }
+        }
+         
+        
+        /*
+         * Follower side of replication. Entries are logged as they arrive
+         * but only applied to storedFile once the leader's commit index,
+         * sent with every request and heartbeat, covers them, so a read
+         * never sees a write that a majority may not have. Each request is
+         * answered once its entries are durable. Requests on one stream
+         * arrive one at a time and in order, and answers are sent from the
+         * log's writer thread, so they are in order too.
+         */
+        @Override
+        public StreamObserver<AppendRequest> appendEntries(final StreamObserver<AppendResponse> responseObserver) {
+            return new StreamObserver<AppendRequest>() {
+                private boolean failed;
+
+                @Override
+                public void onNext(AppendRequest request) {
+                    if (failed) {
+                        return;
+                    }
+                    if (leadIng || crushed) {
+                        failed = true;
+                        responseObserver.onError(Status.UNAVAILABLE
+                                .withDescription(leadIng ? "Not a follower" : "Server is crashed")
+                                .asRuntimeException());
+                        return;
+                    }
+                    ListenableFuture<AppendResponse> followed = follow(request);
+                    wakeReads();
+                    Futures.addCallback(followed, new FutureCallback<AppendResponse>() {
+                        @Override
+                        public void onSuccess(AppendResponse response) {
+                            synchronized (responseObserver) {
+                                responseObserver.onNext(response);
+                            }
+                        }
 
-                      
+                        @Override
+                        public void onFailure(Throwable t) {
+                            synchronized (responseObserver) {
+                                responseObserver.onError(Status.INTERNAL.withCause(t).asRuntimeException());
+                            }
+                        }
+                    });
                 }
 
-                else                                                         // fail to modify because of version
-                {                                   
-                    builder.setResultValue(1);                                // version check fail and send 0 back
-                    builder.setCurrentVersion(currentVersion); 
+                @Override
+                public void onError(Throwable t) {
                 }
 
+                @Override
+                public void onCompleted() {
+                    synchronized (responseObserver) {
+                        if (!failed) {
+                            responseObserver.onCompleted();
+                        }
+                    }
+                }
+            };
+        }
 
+        protected synchronized ListenableFuture<AppendResponse> follow(AppendRequest request) {
+            applyCommitted(request.getCommitIndex());
+            if (request.getPrevIndex() > log.lastIndex()) {
+                return Futures.immediateFuture(AppendResponse.newBuilder()
+                        .setSuccess(false)
+                        .setLastIndex(log.lastIndex())
+                        .build());
             }
-   
-            WriteResult response = builder.build();
-            responseObserver.onNext(response);
-            responseObserver.onCompleted(); 
 
+            ListenableFuture<LogEntry> logged = null;
+            for (LogEntry entry : request.getEntriesList()) {
+                if (entry.getIndex() > log.lastIndex()) {
+                    logged = log.append(entry);
+                }
+            }
+            applyCommitted(request.getCommitIndex());
+            lastContact = System.nanoTime();
+
+            if (logged == null) {
+                return Futures.immediateFuture(AppendResponse.newBuilder()
+                        .setSuccess(true)
+                        .setLastIndex(log.durableIndex())
+                        .build());
+            }
+            return Futures.transform(logged, new Function<LogEntry, AppendResponse>() {
+                @Override
+                public AppendResponse apply(LogEntry entry) {
+                    return AppendResponse.newBuilder()
+                            .setSuccess(true)
+                            .setLastIndex(entry.getIndex())
+                            .build();
+                }
+            });
+        }
 
-                     
+        /* apply the logged entries up to the leader's commit index; call holding the lock */
+        protected void applyCommitted(long commitIndex) {
+            long index = Math.min(commitIndex, log.lastIndex());
+            if (index <= lastApplied) {
+                return;
+            }
+            /* snapshots stop at lastApplied, so the entries after it are still in memory */
+            for (LogEntry entry : log.entriesAfter(lastApplied, (int) (index - lastApplied))) {
+                WriteAheadLog.apply(storedFile, entry.getFile());
+            }
+            lastApplied = index;
         }
 
+        /*
+         * Follower side of snapshot installation. The snapshot is written
+         * to a temporary file as it arrives and only replaces this
+         * server's state once all of it is on disk.
+         */
         @Override
-        public void deleteFile(surfstore.SurfStoreBasic.FileInfo request,
-          		       io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.WriteResult> responseObserver) {
-
-          //asyncUnimplementedUnaryCall(METHOD_DELETE_FILE, responseObserver);
-          logger.info("Delete file with name:" + request.getFilename());
-
+        public StreamObserver<SnapshotChunk> installSnapshot(final StreamObserver<AppendResponse> responseObserver) {
+            final File received = new File(log.directory(), "install-" + System.nanoTime() + ".tmp");
 
-                int version = request.getVersion();
-                String fileName = request.getFilename();
-                List<String> blockList = request.getBlocklistList();
+            return new StreamObserver<SnapshotChunk>() {
+                private FileOutputStream out;
+                private boolean failed;
 
-            	WriteResult.Builder builder = WriteResult.newBuilder();
-                
-                if(fileName != null && storedFile.containsKey(fileName) == true)  // the file has been created
-                {   
-                     Info existingFile = storedFile.get(fileName);
-                     if(version == existingFile.version + 1)
-                     {
-                         existingFile.hashList.clear();
-                         existingFile.hashList.add("0");
-                         existingFile.version = version;
- 
-                         builder.setResultValue(0);                                  // successfully deleted
-                         builder.setCurrentVersion(version); 
-                        
-                     } 
-                     else
-                     {
-                         
-                         builder.setResultValue(1);                                  // fail to delete
-                         builder.setCurrentVersion(existingFile.version); 
+                @Override
+                public void onNext(SnapshotChunk chunk) {
+                    if (failed) {
+                        return;
+                    }
+                    if (leadIng || crushed) {
+                        fail(Status.UNAVAILABLE.withDescription(leadIng ? "Not a follower" : "Server is crashed"));
+                        return;
+                    }
+                    try {
+                        if (out == null) {
+                            out = new FileOutputStream(received);
+                        }
+                        chunk.getData().writeTo(out);
+                    } catch (IOException e) {
+                        fail(Status.INTERNAL.withCause(e));
+                    }
+                }
 
-                     } 
+                @Override
+                public void onError(Throwable t) {
+                    discard();
                 }
 
-                else                                                            // the file has never been created
-                {
-                     if(version == 0 + 1)
-                     {
-                          Info newFile = new Info();
-                          newFile.version = version;
-                          newFile.hashList.add("0");                                     
-                          storedFile.put(fileName,newFile);
-                          builder.setResultValue(0);                                
-		          builder.setCurrentVersion(newFile.version); 
+                @Override
+                public void onCompleted() {
+                    if (failed) {
+                        return;
+                    }
+                    if (out == null) {
+                        fail(Status.INVALID_ARGUMENT.withDescription("Empty snapshot"));
+                        return;
+                    }
+                    long index;
+                    try {
+                        out.getFD().sync();
+                        out.close();
+                        synchronized (MetadataStoreImpl.this) {
+                            long last = log.lastIndex();
+                            index = log.install(received, storedFile);
+                            if (index > last) {
+                                /* the leader only snapshots committed entries */
+                                lastApplied = index;
+                            }
+                            lastContact = System.nanoTime();
+                        }
+                    } catch (IOException e) {
+                        fail(Status.INTERNAL.withCause(e));
+                        return;
+                    }
+                    wakeReads();
+                    responseObserver.onNext(AppendResponse.newBuilder()
+                            .setSuccess(true)
+                            .setLastIndex(index)
+                            .build());
+                    responseObserver.onCompleted();
+                }
 
-                     }
-                     else
-                     {
+                private void fail(Status status) {
+                    failed = true;
+                    discard();
+                    responseObserver.onError(status.asRuntimeException());
+                }
 
-                          builder.setResultValue(1);                                  // fail to delete
-                          builder.setCurrentVersion(0); 
+                private void discard() {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            /* the file is deleted anyway */
+                        }
+                    }
+                    received.delete();
+                }
+            };
+        }
 
-                     }
+        @Override
+        public void readIndex(surfstore.SurfStoreBasic.Empty request,
+                  io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.LogPosition> responseObserver) {
+
+            if (!leadIng || crushed) {
+                responseObserver.onError(Status.UNAVAILABLE
+                        .withDescription(crushed ? "Server is crashed" : "Not the leader")
+                        .asRuntimeException());
+                return;
+            }
+            long index = (replicator != null) ? replicator.commitIndex() : log.lastIndex();
+            responseObserver.onNext(LogPosition.newBuilder().setIndex(index).build());
+            responseObserver.onCompleted();
+        }
 
+        @Override
+        public void collectGarbage(surfstore.SurfStoreBasic.Empty request,
+                  io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.DeleteResult> responseObserver) {
+
+            if (!leadIng || crushed) {
+                responseObserver.onError(Status.UNAVAILABLE
+                        .withDescription(crushed ? "Server is crashed" : "Not the leader")
+                        .asRuntimeException());
+                return;
+            }
+            respond(gcExecutor.submit(new Callable<DeleteResult>() {
+                @Override
+                public DeleteResult call() {
+                    return DeleteResult.newBuilder().setBlocks(garbageCollector.collect()).build();
                 }
- 
-                WriteResult response = builder.build();
-                responseObserver.onNext(response);
-                responseObserver.onCompleted();
+            }), responseObserver);
+        }
 
+        @Override
+        public void getStats(surfstore.SurfStoreBasic.Empty request,
+                  io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.StatsReport> responseObserver) {
+
+            responseObserver.onNext(stats.report());
+            responseObserver.onCompleted();
         }
-         
-        
+
         @Override
         public void isLeader(surfstore.SurfStoreBasic.Empty request,
           		    io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.SimpleAnswer> responseObserver) {
@@ -489,7 +1226,7 @@ public final class MetadataStore {
 
         @Override
         public void isCrashed(surfstore.SurfStoreBasic.Empty request,
-                  io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.Empty> responseObserver) {
+                  io.grpc.stub.StreamObserver<surfstore.SurfStoreBasic.SimpleAnswer> responseObserver) {
             
 
              SimpleAnswer response = SimpleAnswer.newBuilder().setAnswer(this.crushed).build();
@@ -498,3 +1235,4 @@ public final class MetadataStore {
                 
         }
 }
+}
@@ -0,0 +1,457 @@
+package surfstore;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * In-memory block storage that keeps nothing per block on the Java heap.
+ *
+ * Block data is bump-allocated into large direct-memory slabs. The index
+ * is an open-addressing hash table, also in direct memory, keyed by the
+ * raw 32 byte SHA-256 of the block (the Base64 hash string decoded).
+ * Each table slot is
+ *
+ *   key (32 bytes), location (long), data length (int), unused (int)
+ *
+ * where location is (slab number + 1) << 32 | offset in slab, so an
+ * all-zero slot is empty. Collisions are resolved by linear probing and
+ * the table doubles when it is 70% full. Deletes shift later entries of
+ * the probe sequence back instead of leaving markers in the table.
+ *
+ * The slab space of a deleted block is not reused. compact() instead
+ * copies the live blocks out of every full slab less than half of which
+ * is live into the newest slab, a table page at a time, and then lets go
+ * of the old slab.
+ *
+ * Since the garbage collector never sees individual blocks, pause times
+ * do not grow with the number of blocks stored. Slab regions are never
+ * overwritten, so get() hands out ByteStrings that point straight into a
+ * slab. Hashes that are not Base64-encoded SHA-256 digests cannot be
+ * stored.
+ */
+public final class OffHeapBlockStorage implements BlockStorage {
+
+    public static final int DEFAULT_SLAB_SIZE = 64 << 20;
+
+    private static final int SLOT_SIZE = 48;
+    private static final int LOCATION_OFFSET = 32;
+    private static final int LENGTH_OFFSET = 40;
+    private static final int PAGE_SHIFT = 16;
+    private static final int PAGE_SLOTS = 1 << PAGE_SHIFT;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final double MAX_LOAD = 0.7;
+    /* full slabs with less than this fraction of live data are compacted */
+    private static final double MIN_LIVE_RATIO = 0.5;
+
+    private final int slabSize;
+    private final ReadWriteLock lock;
+    /* slabs; null once compacted away, so slab numbers do not change */
+    private final List<ByteBuffer> slabs;
+    /* bytes of live blocks in each slab */
+    private long[] slabLive;
+
+    /* the hash table, split into pages of PAGE_SLOTS slots */
+    private ByteBuffer[] table;
+    private long capacity;
+    private long count;
+    private long totalBytes;
+
+    public OffHeapBlockStorage() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    public OffHeapBlockStorage(int slabSize) {
+        this.slabSize = slabSize;
+        this.lock = new ReentrantReadWriteLock();
+        this.slabs = new ArrayList<ByteBuffer>();
+        this.slabLive = new long[0];
+        this.table = allocateTable(INITIAL_CAPACITY);
+        this.capacity = INITIAL_CAPACITY;
+    }
+
+    @Override
+    public void put(String hash, ByteString data) {
+        long[] key = decodeKey(hash);
+        if (key == null) {
+            throw new IllegalArgumentException("Not a SHA-256 block hash: " + hash);
+        }
+
+        lock.writeLock().lock();
+        try {
+            long slot = findSlot(table, capacity, key);
+            if (location(table, slot) != 0) {
+                return;
+            }
+            if (count + 1 > capacity * MAX_LOAD) {
+                grow();
+                slot = findSlot(table, capacity, key);
+            }
+
+            long location = allocate(data.size());
+            ByteBuffer slab = slabs.get(slabIndex(location)).duplicate();
+            slab.position(slabOffset(location));
+            data.copyTo(slab);
+
+            writeSlot(table, slot, key, location, data.size());
+            count++;
+            totalBytes += data.size();
+            slabLive[slabIndex(location)] += data.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public ByteString get(String hash) {
+        long[] key = decodeKey(hash);
+        if (key == null) {
+            return null;
+        }
+
+        lock.readLock().lock();
+        try {
+            long slot = findSlot(table, capacity, key);
+            long location = location(table, slot);
+            if (location == 0) {
+                return null;
+            }
+            ByteBuffer data = slabs.get(slabIndex(location)).duplicate();
+            data.position(slabOffset(location));
+            data.limit(slabOffset(location) + length(table, slot));
+            return UnsafeByteOperations.unsafeWrap(data.slice());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(String hash) {
+        long[] key = decodeKey(hash);
+        if (key == null) {
+            return false;
+        }
+
+        lock.readLock().lock();
+        try {
+            return location(table, findSlot(table, capacity, key)) != 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(String hash) {
+        long[] key = decodeKey(hash);
+        if (key == null) {
+            return false;
+        }
+
+        lock.writeLock().lock();
+        try {
+            long hole = findSlot(table, capacity, key);
+            if (location(table, hole) == 0) {
+                return false;
+            }
+            count--;
+            totalBytes -= length(table, hole);
+            slabLive[slabIndex(location(table, hole))] -= length(table, hole);
+
+            /* move back every later entry whose home slot is at or before the hole */
+            long mask = capacity - 1;
+            long[] moved = new long[4];
+            for (long next = (hole + 1) & mask; location(table, next) != 0; next = (next + 1) & mask) {
+                readKey(table, next, moved);
+                long home = moved[0] & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    writeSlot(table, hole, moved, location(table, next), length(table, next));
+                    hole = next;
+                }
+            }
+            writeSlot(table, hole, new long[4], 0, 0);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Walks the table a page at a time, copying the keys of one page under
+     * the read lock. Entries moved by a concurrent grow() or delete() may
+     * be missed or seen twice.
+     */
+    @Override
+    public Iterator<String> hashes() {
+        return new Iterator<String>() {
+            private long nextSlot = 0;
+            private final List<String> page = new ArrayList<String>();
+            private int pagePosition = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (pagePosition == page.size()) {
+                    page.clear();
+                    pagePosition = 0;
+                    lock.readLock().lock();
+                    try {
+                        if (nextSlot >= capacity) {
+                            return false;
+                        }
+                        long end = Math.min(nextSlot + PAGE_SLOTS, capacity);
+                        long[] key = new long[4];
+                        ByteBuffer raw = ByteBuffer.allocate(HashUtils.SHA256_LENGTH);
+                        for (; nextSlot < end; nextSlot++) {
+                            if (location(table, nextSlot) != 0) {
+                                readKey(table, nextSlot, key);
+                                raw.clear();
+                                raw.putLong(key[0]).putLong(key[1]).putLong(key[2]).putLong(key[3]);
+                                page.add(HashUtils.encode(raw.array()));
+                            }
+                        }
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.get(pagePosition++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public long count() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long bytes() {
+        lock.readLock().lock();
+        try {
+            return totalBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /* nothing is on disk */
+    @Override
+    public void sync() {
+    }
+
+    @Override
+    public long compact() {
+        boolean[] sparse;
+        lock.readLock().lock();
+        try {
+            sparse = new boolean[slabs.size()];
+            boolean any = false;
+            /* the newest slab is still being filled */
+            for (int i = 0; i < slabs.size() - 1; i++) {
+                ByteBuffer slab = slabs.get(i);
+                sparse[i] = slab != null && slabLive[i] < slab.capacity() * MIN_LIVE_RATIO;
+                any |= sparse[i];
+            }
+            if (!any) {
+                return 0;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        for (long page = 0; ; page++) {
+            lock.writeLock().lock();
+            try {
+                long start = page << PAGE_SHIFT;
+                if (start >= capacity) {
+                    break;
+                }
+                for (long slot = start; slot < start + PAGE_SLOTS; slot++) {
+                    long location = location(table, slot);
+                    /* slabs started since the walk began are not in sparse */
+                    if (location != 0 && slabIndex(location) < sparse.length && sparse[slabIndex(location)]) {
+                        move(slot, location);
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /* a grow() during the walk may have moved entries past it; those slabs wait for the next run */
+        long freed = 0;
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < sparse.length; i++) {
+                if (sparse[i] && slabLive[i] == 0) {
+                    freed += slabs.get(i).capacity();
+                    slabs.set(i, null);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return freed;
+    }
+
+    /* copy the block in this slot to the newest slab; called holding the write lock */
+    private void move(long slot, long from) {
+        int length = length(table, slot);
+        ByteBuffer data = slabs.get(slabIndex(from)).duplicate();
+        data.position(slabOffset(from));
+        data.limit(slabOffset(from) + length);
+
+        long to = allocate(length);
+        ByteBuffer slab = slabs.get(slabIndex(to)).duplicate();
+        slab.position(slabOffset(to));
+        slab.put(data);
+
+        table[(int) (slot >>> PAGE_SHIFT)].putLong((int) (slot & (PAGE_SLOTS - 1)) * SLOT_SIZE + LOCATION_OFFSET, to);
+        slabLive[slabIndex(from)] -= length;
+        slabLive[slabIndex(to)] += length;
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            slabs.clear();
+            slabLive = new long[0];
+            table = allocateTable(INITIAL_CAPACITY);
+            capacity = INITIAL_CAPACITY;
+            count = 0;
+            totalBytes = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* reserve space for a block in the newest slab, starting a new one if it is full */
+    private long allocate(int length) {
+        ByteBuffer slab = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+        if (slab == null || slab.remaining() < length) {
+            slab = ByteBuffer.allocateDirect(Math.max(slabSize, length));
+            slabs.add(slab);
+            slabLive = Arrays.copyOf(slabLive, slabs.size());
+        }
+        int offset = slab.position();
+        slab.position(offset + length);
+        return ((long) slabs.size() << 32) | offset;
+    }
+
+    private void grow() {
+        long newCapacity = capacity * 2;
+        ByteBuffer[] newTable = allocateTable(newCapacity);
+        long[] key = new long[4];
+
+        for (long slot = 0; slot < capacity; slot++) {
+            long location = location(table, slot);
+            if (location == 0) {
+                continue;
+            }
+            readKey(table, slot, key);
+            writeSlot(newTable, findSlot(newTable, newCapacity, key), key, location, length(table, slot));
+        }
+
+        table = newTable;
+        capacity = newCapacity;
+    }
+
+    /*
+     * Return the slot holding this key, or the empty slot where it would
+     * be inserted.
+     */
+    private static long findSlot(ByteBuffer[] table, long capacity, long[] key) {
+        long mask = capacity - 1;
+        long slot = key[0] & mask;
+        while (true) {
+            ByteBuffer page = table[(int) (slot >>> PAGE_SHIFT)];
+            int base = (int) (slot & (PAGE_SLOTS - 1)) * SLOT_SIZE;
+            if (page.getLong(base + LOCATION_OFFSET) == 0) {
+                return slot;
+            }
+            if (page.getLong(base) == key[0] && page.getLong(base + 8) == key[1]
+                    && page.getLong(base + 16) == key[2] && page.getLong(base + 24) == key[3]) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static void writeSlot(ByteBuffer[] table, long slot, long[] key, long location, int length) {
+        ByteBuffer page = table[(int) (slot >>> PAGE_SHIFT)];
+        int base = (int) (slot & (PAGE_SLOTS - 1)) * SLOT_SIZE;
+        for (int i = 0; i < 4; i++) {
+            page.putLong(base + i * 8, key[i]);
+        }
+        page.putInt(base + LENGTH_OFFSET, length);
+        page.putLong(base + LOCATION_OFFSET, location);
+    }
+
+    private static void readKey(ByteBuffer[] table, long slot, long[] key) {
+        ByteBuffer page = table[(int) (slot >>> PAGE_SHIFT)];
+        int base = (int) (slot & (PAGE_SLOTS - 1)) * SLOT_SIZE;
+        for (int i = 0; i < 4; i++) {
+            key[i] = page.getLong(base + i * 8);
+        }
+    }
+
+    private static long location(ByteBuffer[] table, long slot) {
+        return table[(int) (slot >>> PAGE_SHIFT)].getLong((int) (slot & (PAGE_SLOTS - 1)) * SLOT_SIZE + LOCATION_OFFSET);
+    }
+
+    private static int length(ByteBuffer[] table, long slot) {
+        return table[(int) (slot >>> PAGE_SHIFT)].getInt((int) (slot & (PAGE_SLOTS - 1)) * SLOT_SIZE + LENGTH_OFFSET);
+    }
+
+    private static int slabIndex(long location) {
+        return (int) (location >>> 32) - 1;
+    }
+
+    private static int slabOffset(long location) {
+        return (int) location;
+    }
+
+    private static ByteBuffer[] allocateTable(long capacity) {
+        int pages = (int) Math.max(1, capacity >>> PAGE_SHIFT);
+        ByteBuffer[] table = new ByteBuffer[pages];
+        for (int i = 0; i < pages; i++) {
+            table[i] = ByteBuffer.allocateDirect(PAGE_SLOTS * SLOT_SIZE);
+        }
+        return table;
+    }
+
+    /* the raw SHA-256 of a Base64 block hash as four longs, or null if it is not one */
+    private static long[] decodeKey(String hash) {
+        byte[] raw = HashUtils.decode(hash);
+        if (raw == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        return new long[] { buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong() };
+    }
+}
@@ -0,0 +1,82 @@
+package surfstore;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import surfstore.SurfStoreBasic.Empty;
+import surfstore.SurfStoreBasic.LogPosition;
+
+/**
+ * The leader's commit index, as seen by a follower serving linearizable
+ * reads.
+ *
+ * Every write acknowledged before a read started is at or below the
+ * commit index the leader reports after the read started, so a follower
+ * that waits for its log to reach that index sees all of them.
+ *
+ * Reads that arrive while a ReadIndex call is in flight all wait for the
+ * next call, which starts as soon as the current one returns. A burst of
+ * reads costs one or two round trips to the leader, not one each.
+ */
+public final class ReadIndex {
+
+    private static final long DEADLINE_MS = 1000;
+
+    private final MetadataStoreGrpc.MetadataStoreFutureStub leader;
+
+    /* guarded by this */
+    private SettableFuture<Long> next;
+    private boolean inFlight;
+
+    public ReadIndex(MetadataStoreGrpc.MetadataStoreFutureStub leader) {
+        this.leader = leader;
+    }
+
+    /**
+     * A commit index read from the leader after this call was made.
+     */
+    public synchronized ListenableFuture<Long> get() {
+        if (next == null) {
+            next = SettableFuture.create();
+        }
+        ListenableFuture<Long> index = next;
+        if (!inFlight) {
+            send();
+        }
+        return index;
+    }
+
+    /* called holding the lock */
+    private void send() {
+        final SettableFuture<Long> current = next;
+        next = null;
+        inFlight = true;
+
+        ListenableFuture<LogPosition> call = leader.withDeadlineAfter(DEADLINE_MS, TimeUnit.MILLISECONDS)
+                .readIndex(Empty.getDefaultInstance());
+        Futures.addCallback(call, new FutureCallback<LogPosition>() {
+            @Override
+            public void onSuccess(LogPosition position) {
+                current.set(position.getIndex());
+                finished();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                current.setException(t);
+                finished();
+            }
+        });
+    }
+
+    private synchronized void finished() {
+        inFlight = false;
+        if (next != null) {
+            send();
+        }
+    }
+}
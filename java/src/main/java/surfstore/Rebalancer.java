@@ -0,0 +1,122 @@
+package surfstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+import com.google.protobuf.ByteString;
+
+import surfstore.SurfStoreBasic.Block;
+import surfstore.SurfStoreBasic.RebalanceResult;
+
+/**
+ * Moves the blocks a BlockStore no longer owns to the servers that do.
+ *
+ * The config file is read again, so servers added to it since this one
+ * started are part of the ring. Misplaced blocks are collected per owner
+ * and sent in batches over StoreBlocks; a batch is only deleted here once
+ * its owner has acknowledged it, so every block is stored somewhere at all
+ * times. Readers that miss a block at its new owner while it is moving
+ * find it here (see BlockStreams.getBlocks).
+ */
+public final class Rebalancer {
+    private static final Logger logger = Logger.getLogger(Rebalancer.class.getName());
+
+    /* blocks sent per StoreBlocks call before they are deleted here */
+    private static final int BATCH = 1024;
+
+    private final File configFile;
+    private final int self;
+    private final BlockStorage storage;
+
+    public Rebalancer(File configFile, int self, BlockStorage storage) {
+        this.configFile = configFile;
+        this.self = self;
+        this.storage = storage;
+    }
+
+    public synchronized RebalanceResult rebalance() throws IOException, InterruptedException {
+        BlockCluster cluster = new BlockCluster(new ConfigReader(configFile));
+        long blocks = 0;
+        long bytes = 0;
+        try {
+            Map<Integer, List<String>> misplaced = new HashMap<Integer, List<String>>();
+            Iterator<String> hashes = storage.hashes();
+            while (hashes.hasNext()) {
+                String hash = hashes.next();
+                int owner = cluster.ring().nodeFor(hash);
+                if (owner == self) {
+                    continue;
+                }
+                List<String> batch = misplaced.get(owner);
+                if (batch == null) {
+                    batch = new ArrayList<String>();
+                    misplaced.put(owner, batch);
+                }
+                batch.add(hash);
+                if (batch.size() == BATCH) {
+                    bytes += move(cluster, owner, batch);
+                    blocks += batch.size();
+                    batch.clear();
+                }
+            }
+            for (Map.Entry<Integer, List<String>> batch : misplaced.entrySet()) {
+                bytes += move(cluster, batch.getKey(), batch.getValue());
+                blocks += batch.getValue().size();
+            }
+        } finally {
+            cluster.shutdown();
+        }
+
+        logger.info("Moved " + blocks + " blocks (" + bytes + " bytes) to other servers");
+        return RebalanceResult.newBuilder().setBlocks(blocks).setBytes(bytes).build();
+    }
+
+    /* send a batch of blocks to their owner, then delete them here; returns the bytes moved */
+    private long move(BlockCluster cluster, int owner, final List<String> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        final List<ByteString> data = new ArrayList<ByteString>(batch.size());
+        for (String hash : batch) {
+            data.add(storage.get(hash));
+        }
+
+        BlockStreams.storeBlocks(cluster.asyncStub(owner), new Iterator<Block>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < batch.size();
+            }
+
+            @Override
+            public Block next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Block block = Block.newBuilder().setHash(batch.get(next)).setData(data.get(next)).build();
+                next++;
+                return block;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        });
+
+        long bytes = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            storage.delete(batch.get(i));
+            bytes += data.get(i).size();
+        }
+        return bytes;
+    }
+}
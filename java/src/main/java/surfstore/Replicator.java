@@ -0,0 +1,425 @@
+package surfstore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+
+import io.grpc.stub.StreamObserver;
+import surfstore.SurfStoreBasic.AppendRequest;
+import surfstore.SurfStoreBasic.AppendResponse;
+import surfstore.SurfStoreBasic.LogEntry;
+import surfstore.SurfStoreBasic.SnapshotChunk;
+
+/**
+ * Ships the leader's write-ahead log to its followers.
+ *
+ * Each follower has one AppendEntries stream. Entries are sent in
+ * batches of up to MAX_BATCH, and up to MAX_IN_FLIGHT batches may be
+ * unacknowledged at once, so a follower is sent everything written while
+ * earlier batches were in flight instead of one write per round trip.
+ * The stream keeps the batches in order.
+ *
+ * A write is committed once the leader and enough followers to make a
+ * majority have it in their logs. The leader is fixed by the config, so
+ * there are no terms or elections; a follower that refuses a batch is
+ * simply missing earlier entries, and is sent the log again from the end
+ * of its own. A follower that cannot be reached is retried every
+ * RETRY_DELAY_MS.
+ *
+ * Since entries carry no term, a follower takes an entry it already has
+ * to be the same as the leader's. Only entries that are durable on the
+ * leader are sent, so that always holds: an entry the leader loses in a
+ * crash has never left it, and the write that reuses its index after a
+ * restart is the first one any server sees.
+ *
+ * An idle follower is sent an empty request every HEARTBEAT_MS, so it
+ * knows how recently it heard from the leader.
+ *
+ * A follower that comes back after an outage catches up in the
+ * background. If it is only a little behind, it is sent the entries it
+ * missed over its AppendEntries stream. If it needs entries the leader no
+ * longer keeps in memory, it is sent the leader's newest snapshot with
+ * InstallSnapshot and then the entries after it. Both kinds of catch-up
+ * traffic are limited to a fixed rate per follower, so a recovering
+ * follower cannot starve the leader's live writes.
+ */
+public final class Replicator {
+    private static final Logger logger = Logger.getLogger(Replicator.class.getName());
+
+    /* entries per AppendRequest */
+    private static final int MAX_BATCH = 1024;
+    /* unacknowledged AppendRequests per follower */
+    private static final int MAX_IN_FLIGHT = 8;
+    private static final long RETRY_DELAY_MS = 200;
+    public static final long HEARTBEAT_MS = 100;
+    /* a follower further behind than this is catching up, and is rate limited */
+    private static final long CATCH_UP_LAG = (long) MAX_BATCH * MAX_IN_FLIGHT;
+    /* entries kept in memory for lagging followers, beyond the newest snapshot */
+    private static final long RETAINED_ENTRIES = 1 << 20;
+    private static final int SNAPSHOT_CHUNK = 64 << 10;
+    private static final long SEND_RETRY_MS = 10;
+
+    private final WriteAheadLog log;
+    private final List<Follower> followers;
+    /* follower acknowledgements a write needs, besides the leader's own */
+    private final int needed;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService installer;
+    private final double catchUpRate;
+
+    /* guarded by this */
+    private long commitIndex;
+    private final TreeMap<Long, SettableFuture<Long>> waiting;
+
+    /**
+     * @param catchUpRate bytes per second each catching-up follower may be sent
+     */
+    public Replicator(WriteAheadLog log, Map<Integer, MetadataStoreGrpc.MetadataStoreStub> followerStubs,
+                      double catchUpRate) {
+        this.log = log;
+        this.catchUpRate = catchUpRate;
+        this.followers = new ArrayList<Follower>();
+        for (Map.Entry<Integer, MetadataStoreGrpc.MetadataStoreStub> stub : followerStubs.entrySet()) {
+            followers.add(new Follower(stub.getKey(), stub.getValue()));
+        }
+        this.needed = (followers.size() + 1) / 2;
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+        this.installer = Executors.newCachedThreadPool();
+        this.waiting = new TreeMap<Long, SettableFuture<Long>>();
+    }
+
+    /**
+     * Connect to the followers and start sending them the log.
+     */
+    public void start() {
+        synchronized (this) {
+            commitIndex = log.lastIndex();
+        }
+        for (Follower follower : followers) {
+            follower.connect();
+        }
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (Follower follower : followers) {
+                    follower.heartbeat();
+                }
+            }
+        }, HEARTBEAT_MS, HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        timer.shutdownNow();
+        installer.shutdownNow();
+    }
+
+    /**
+     * Send any new durable log entries to the followers. Call whenever an
+     * append becomes durable.
+     */
+    public void wake() {
+        for (Follower follower : followers) {
+            follower.send();
+        }
+    }
+
+    /**
+     * A future that completes once a majority of followers has the entry
+     * with the given index. The leader's own copy is not counted.
+     */
+    public synchronized ListenableFuture<Long> replicated(long index) {
+        if (index <= commitIndex) {
+            return Futures.immediateFuture(index);
+        }
+        SettableFuture<Long> future = waiting.get(index);
+        if (future == null) {
+            future = SettableFuture.create();
+            waiting.put(index, future);
+        }
+        return future;
+    }
+
+    /**
+     * The last index a majority of servers has logged.
+     */
+    public synchronized long commitIndex() {
+        return commitIndex;
+    }
+
+    /**
+     * The index up to which the in-memory log can be trimmed once a
+     * snapshot up to snapshotIndex exists. Entries that lagging followers
+     * still need are kept, up to RETAINED_ENTRIES of them; a follower
+     * further behind than that gets the snapshot instead.
+     */
+    public long trimIndex(long snapshotIndex) {
+        long min = Long.MAX_VALUE;
+        for (Follower follower : followers) {
+            min = Math.min(min, follower.matchIndex);
+        }
+        return Math.max(Math.min(snapshotIndex, min), snapshotIndex - RETAINED_ENTRIES);
+    }
+
+    /* recompute the commit index after a follower acknowledged entries */
+    private void advance() {
+        long[] matched = new long[followers.size()];
+        for (int i = 0; i < matched.length; i++) {
+            matched[i] = followers.get(i).matchIndex;
+        }
+        Arrays.sort(matched);
+        long quorum = matched[matched.length - needed];
+
+        List<SettableFuture<Long>> done = new ArrayList<SettableFuture<Long>>();
+        synchronized (this) {
+            if (quorum <= commitIndex) {
+                return;
+            }
+            commitIndex = quorum;
+            Iterator<SettableFuture<Long>> it = waiting.headMap(quorum, true).values().iterator();
+            while (it.hasNext()) {
+                done.add(it.next());
+                it.remove();
+            }
+        }
+        for (SettableFuture<Long> future : done) {
+            future.set(quorum);
+        }
+    }
+
+    private final class Follower {
+        final int id;
+        final MetadataStoreGrpc.MetadataStoreStub stub;
+        final RateLimiter limiter;
+        volatile long matchIndex;
+
+        /* guarded by this */
+        Stream stream;
+        long nextIndex;
+        /* unacknowledged requests */
+        int inFlight;
+        /* responses still due to requests sent before the last refusal */
+        int stale;
+        boolean installing;
+        boolean sendScheduled;
+
+        Follower(int id, MetadataStoreGrpc.MetadataStoreStub stub) {
+            this.id = id;
+            this.stub = stub;
+            this.limiter = RateLimiter.create(catchUpRate);
+        }
+
+        synchronized void connect() {
+            stream = new Stream(this);
+            stream.requests = stub.appendEntries(stream);
+            inFlight = 0;
+            stale = 0;
+
+            /* start from the end of the log; if the follower is behind, it says where its log ends */
+            nextIndex = log.durableIndex() + 1;
+            sendEmpty();
+            send();
+        }
+
+        synchronized void heartbeat() {
+            if (stream != null && !installing && inFlight == 0) {
+                sendEmpty();
+            }
+        }
+
+        /* called holding the lock */
+        private void sendEmpty() {
+            stream.requests.onNext(AppendRequest.newBuilder()
+                    .setPrevIndex(nextIndex - 1)
+                    .setCommitIndex(commitIndex())
+                    .build());
+            inFlight++;
+        }
+
+        synchronized void send() {
+            long durable = log.durableIndex();
+            while (stream != null && !installing && inFlight < MAX_IN_FLIGHT && nextIndex <= durable) {
+                List<LogEntry> entries = log.entriesAfter(nextIndex - 1,
+                        (int) Math.min(MAX_BATCH, durable - nextIndex + 1));
+                if (entries == null) {
+                    logger.info("Sending metadata" + id + " a snapshot");
+                    installing = true;
+                    installer.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            install();
+                        }
+                    });
+                    return;
+                }
+                AppendRequest request = AppendRequest.newBuilder()
+                        .setPrevIndex(nextIndex - 1)
+                        .addAllEntries(entries)
+                        .setCommitIndex(commitIndex())
+                        .build();
+                if (durable - matchIndex > CATCH_UP_LAG && !limiter.tryAcquire(request.getSerializedSize())) {
+                    sendLater(SEND_RETRY_MS);
+                    return;
+                }
+                stream.requests.onNext(request);
+                nextIndex += entries.size();
+                inFlight++;
+            }
+        }
+
+        /* called holding the lock */
+        private void sendLater(long delayMs) {
+            if (sendScheduled) {
+                return;
+            }
+            sendScheduled = true;
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Follower.this) {
+                        sendScheduled = false;
+                        send();
+                    }
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        /* stream the newest snapshot to the follower; runs on the installer pool */
+        private void install() {
+            long installed = -1;
+            File snapshot = log.latestSnapshot();
+            if (snapshot != null) {
+                installed = install(snapshot);
+            }
+
+            synchronized (this) {
+                installing = false;
+                if (installed >= 0) {
+                    matchIndex = Math.max(matchIndex, installed);
+                    nextIndex = installed + 1;
+                    send();
+                } else {
+                    sendLater(RETRY_DELAY_MS);
+                }
+            }
+            advance();
+        }
+
+        /* the follower's last index once it has installed the snapshot, or -1 */
+        private long install(File snapshot) {
+            final SettableFuture<AppendResponse> reply = SettableFuture.create();
+            StreamObserver<SnapshotChunk> chunks = stub.installSnapshot(new StreamObserver<AppendResponse>() {
+                @Override
+                public void onNext(AppendResponse response) {
+                    reply.set(response);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    reply.setException(t);
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            });
+
+            try (InputStream in = new FileInputStream(snapshot)) {
+                byte[] buffer = new byte[SNAPSHOT_CHUNK];
+                int n;
+                while ((n = in.read(buffer)) > 0 && !reply.isDone()) {
+                    limiter.acquire(n);
+                    chunks.onNext(SnapshotChunk.newBuilder().setData(ByteString.copyFrom(buffer, 0, n)).build());
+                }
+                chunks.onCompleted();
+                return reply.get().getLastIndex();
+            } catch (IOException | RuntimeException e) {
+                logger.warning("Could not send a snapshot to metadata" + id + ": " + e);
+                chunks.onError(e);
+            } catch (ExecutionException e) {
+                logger.warning("metadata" + id + " refused the snapshot: " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                chunks.onError(e);
+            }
+            return -1;
+        }
+
+        void acknowledged(Stream from, AppendResponse response) {
+            synchronized (this) {
+                if (from != stream) {
+                    return;
+                }
+                inFlight--;
+                if (response.getSuccess()) {
+                    matchIndex = Math.max(matchIndex, response.getLastIndex());
+                } else if (stale == 0) {
+                    /* every request still in flight will be refused too */
+                    stale = inFlight + 1;
+                    nextIndex = response.getLastIndex() + 1;
+                }
+                if (stale > 0) {
+                    stale--;
+                }
+            }
+            advance();
+            send();
+        }
+
+        synchronized void disconnect(Stream from) {
+            if (from != stream) {
+                return;
+            }
+            stream = null;
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    connect();
+                }
+            }, RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /* the responses of one AppendEntries stream */
+    private static final class Stream implements StreamObserver<AppendResponse> {
+        final Follower follower;
+        StreamObserver<AppendRequest> requests;
+
+        Stream(Follower follower) {
+            this.follower = follower;
+        }
+
+        @Override
+        public void onNext(AppendResponse response) {
+            follower.acknowledged(this, response);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            follower.disconnect(this);
+        }
+
+        @Override
+        public void onCompleted() {
+            follower.disconnect(this);
+        }
+    }
+}
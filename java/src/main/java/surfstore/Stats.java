@@ -0,0 +1,234 @@
+package surfstore;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import surfstore.SurfStoreBasic.MethodStats;
+import surfstore.SurfStoreBasic.StatsReport;
+
+/**
+ * Counters, latency histograms and gauges for one server.
+ *
+ * StatsInterceptor records every call into the Method of its RPC; gauges
+ * are sampled only when a report is built. Recording is lock-free: a call
+ * costs a few atomic increments, plus the forwarding call and listener
+ * that StatsInterceptor wraps around it and a flag shared between them.
+ * Reports are read while calls are recorded, so the numbers in one
+ * report may be a few calls apart from each other.
+ */
+public final class Stats {
+
+    /** A value read when a report is built. */
+    public interface Gauge {
+        long value();
+    }
+
+    private final long startTime;
+    private final ConcurrentMap<String, Method> methods;
+    private final ConcurrentMap<String, Gauge> gauges;
+
+    public Stats() {
+        this.startTime = System.currentTimeMillis();
+        this.methods = new ConcurrentSkipListMap<String, Method>();
+        this.gauges = new ConcurrentSkipListMap<String, Gauge>();
+    }
+
+    /**
+     * The Method for an RPC name, created on first use.
+     */
+    public Method method(String name) {
+        Method method = methods.get(name);
+        if (method == null) {
+            Method created = new Method();
+            method = methods.putIfAbsent(name, created);
+            if (method == null) {
+                method = created;
+            }
+        }
+        return method;
+    }
+
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Register the queue depth and busy threads of a server's executor.
+     */
+    public void executorGauges(final ThreadPoolExecutor executor) {
+        gauge("executor.queued", new Gauge() {
+            @Override
+            public long value() {
+                return executor.getQueue().size();
+            }
+        });
+        gauge("executor.active", new Gauge() {
+            @Override
+            public long value() {
+                return executor.getActiveCount();
+            }
+        });
+    }
+
+    public StatsReport report() {
+        StatsReport.Builder report = StatsReport.newBuilder()
+                .setUptimeMs(System.currentTimeMillis() - startTime);
+        for (Map.Entry<String, Method> method : methods.entrySet()) {
+            report.addMethods(method.getValue().report(method.getKey()));
+        }
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            report.putGauges(gauge.getKey(), gauge.getValue().value());
+        }
+        return report.build();
+    }
+
+    /**
+     * Log a report every so many seconds from a daemon thread.
+     */
+    public void logEvery(long seconds, final Logger logger) {
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "stats-dump");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        dumper.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                logger.info("Stats\n" + format(report()));
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * A report as a table, one line per method and per gauge.
+     */
+    public static String format(StatsReport report) {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("uptime %d s%n", report.getUptimeMs() / 1000));
+        out.append(String.format("%-20s %10s %7s %5s %12s %12s %9s %9s %9s %9s%n",
+                "method", "calls", "errors", "live", "bytes in", "bytes out",
+                "p50 us", "p99 us", "p999 us", "max us"));
+        for (MethodStats method : report.getMethodsList()) {
+            out.append(String.format("%-20s %10d %7d %5d %12d %12d %9d %9d %9d %9d%n",
+                    method.getMethod(), method.getCalls(), method.getErrors(), method.getInFlight(),
+                    method.getBytesIn(), method.getBytesOut(),
+                    method.getP50Us(), method.getP99Us(), method.getP999Us(), method.getMaxUs()));
+        }
+        for (Map.Entry<String, Long> gauge : new TreeMap<String, Long>(report.getGaugesMap()).entrySet()) {
+            out.append(String.format("%-20s %10d%n", gauge.getKey(), gauge.getValue()));
+        }
+        return out.toString();
+    }
+
+    /**
+     * Counters and latency histogram of one RPC method.
+     */
+    public static final class Method {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong inFlight = new AtomicLong();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+        final Histogram latency = new Histogram();
+
+        MethodStats report(String name) {
+            return MethodStats.newBuilder()
+                    .setMethod(name)
+                    .setCalls(calls.get())
+                    .setErrors(errors.get())
+                    .setInFlight(inFlight.get())
+                    .setBytesIn(bytesIn.get())
+                    .setBytesOut(bytesOut.get())
+                    .setP50Us(latency.percentile(0.5))
+                    .setP99Us(latency.percentile(0.99))
+                    .setP999Us(latency.percentile(0.999))
+                    .setMaxUs(latency.max())
+                    .build();
+        }
+    }
+
+    /**
+     * Log-linear histogram of microsecond values.
+     *
+     * Values below 8 each have a bucket; above that every power of two is
+     * split into 8 buckets, so a percentile is off by at most 12.5% over
+     * the whole range of a long. Buckets are plain atomic counters.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            counts.incrementAndGet(bucket(value));
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        /* upper bound of the bucket holding the given fraction of values */
+        long percentile(double fraction) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            long lower = (1L << exponent) + (sub << (exponent - SUB_BITS));
+            return lower + (1L << (exponent - SUB_BITS)) - 1;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package surfstore;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.protobuf.MessageLite;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+/**
+ * Records every call of the services it wraps into a Stats: the number
+ * of calls and failed calls, calls in progress, the serialized size of
+ * the messages received and sent, and the time from the start of the
+ * call until it is closed or cancelled. For streaming calls that is the
+ * lifetime of the stream.
+ */
+public final class StatsInterceptor implements ServerInterceptor {
+
+    private final Stats stats;
+    /* the Method of each RPC, so a call does not have to look it up by name */
+    private final ConcurrentMap<MethodDescriptor<?, ?>, Stats.Method> methods;
+
+    public StatsInterceptor(Stats stats) {
+        this.stats = stats;
+        this.methods = new ConcurrentHashMap<MethodDescriptor<?, ?>, Stats.Method>();
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+            Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+        final Stats.Method method = method(call.getMethodDescriptor());
+        final long start = System.nanoTime();
+        final AtomicBoolean finished = new AtomicBoolean();
+        method.calls.incrementAndGet();
+        method.inFlight.incrementAndGet();
+
+        ServerCall<ReqT, RespT> counted = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void sendMessage(RespT message) {
+                method.bytesOut.addAndGet(size(message));
+                super.sendMessage(message);
+            }
+
+            @Override
+            public void close(Status status, Metadata trailers) {
+                finish(method, start, finished, status.isOk());
+                super.close(status, trailers);
+            }
+        };
+
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(next.startCall(counted, headers)) {
+            @Override
+            public void onMessage(ReqT message) {
+                method.bytesIn.addAndGet(size(message));
+                super.onMessage(message);
+            }
+
+            @Override
+            public void onCancel() {
+                finish(method, start, finished, false);
+                super.onCancel();
+            }
+        };
+    }
+
+    private Stats.Method method(MethodDescriptor<?, ?> descriptor) {
+        Stats.Method method = methods.get(descriptor);
+        if (method == null) {
+            String name = descriptor.getFullMethodName();
+            method = stats.method(name.substring(name.lastIndexOf('/') + 1));
+            methods.putIfAbsent(descriptor, method);
+        }
+        return method;
+    }
+
+    private static void finish(Stats.Method method, long start, AtomicBoolean finished, boolean ok) {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        method.latency.record((System.nanoTime() - start) / 1000);
+        method.inFlight.decrementAndGet();
+        if (!ok) {
+            method.errors.incrementAndGet();
+        }
+    }
+
+    private static int size(Object message) {
+        return (message instanceof MessageLite) ? ((MessageLite) message).getSerializedSize() : 0;
+    }
+}
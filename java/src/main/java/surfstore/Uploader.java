@@ -0,0 +1,246 @@
+package surfstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.protobuf.UnsafeByteOperations;
+
+import io.grpc.Status;
+import surfstore.SurfStoreBasic.Block;
+import surfstore.SurfStoreBasic.FileInfo;
+import surfstore.SurfStoreBasic.WriteResult;
+
+/**
+ * Uploads one local file to SurfStore.
+ *
+ * The Chunker cuts the file into chunks, which are hashed in batches on
+ * a thread pool. As each batch of hashes comes in, in file order, the
+ * block servers are asked which of them they lack and those blocks are
+ * sent on one of a bounded number of StoreBlocks streams, one per owning
+ * server. Hashing, the existence checks and the uploads of earlier
+ * batches all run at the same time. Once every batch is hashed and
+ * uploaded the file is committed with ModifyFile; anything it still
+ * reports missing is uploaded before trying again.
+ *
+ * The commit is for the version after the one read before the upload
+ * started. If another client wrote the file in the meantime, the upload
+ * fails with OLD_VERSION rather than overwrite that write.
+ *
+ * Block data is read from the file when it is sent, so the file is never
+ * held in memory. With a BlockCache, every block of a committed file is
+ * added to it.
+ */
+public final class Uploader {
+
+    /* chunks hashed per task and checked per FindMissingBlocks call */
+    private static final int HASH_BATCH = 256;
+    private static final int MAX_COMMIT_ATTEMPTS = 10;
+
+    private final MetadataStoreGrpc.MetadataStoreBlockingStub metadataStub;
+    private final BlockCluster blocks;
+    private final Chunker chunker;
+    private final ExecutorService hashPool;
+    private final ExecutorService uploadPool;
+    private final BlockCache cache;
+
+    /**
+     * @param hashPool   threads used for hashing
+     * @param uploadPool threads used for uploads; its size bounds the
+     *                   number of concurrent StoreBlocks streams
+     */
+    public Uploader(MetadataStoreGrpc.MetadataStoreBlockingStub metadataStub,
+                    BlockCluster blocks,
+                    Chunker chunker,
+                    ExecutorService hashPool, ExecutorService uploadPool) {
+        this(metadataStub, blocks, chunker, hashPool, uploadPool, null);
+    }
+
+    /**
+     * @param cache where to add the blocks of uploaded files, or null
+     */
+    public Uploader(MetadataStoreGrpc.MetadataStoreBlockingStub metadataStub,
+                    BlockCluster blocks,
+                    Chunker chunker,
+                    ExecutorService hashPool, ExecutorService uploadPool,
+                    BlockCache cache) {
+        this.metadataStub = metadataStub;
+        this.blocks = blocks;
+        this.chunker = chunker;
+        this.hashPool = hashPool;
+        this.uploadPool = uploadPool;
+        this.cache = cache;
+    }
+
+    /**
+     * Upload a file under the given name and return the result of the
+     * final ModifyFile call: OK, or OLD_VERSION if the file was written
+     * by someone else during the upload.
+     */
+    public WriteResult upload(String filename, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return upload(filename, channel);
+        }
+    }
+
+    private WriteResult upload(String filename, FileChannel channel) throws IOException {
+        int version = metadataStub.readFile(FileInfo.newBuilder().setFilename(filename).build())
+                .getVersion() + 1;
+
+        List<Chunk> chunks = chunker.split(channel);
+        List<Future<String[]>> hashBatches = HashUtils.sha256Chunks(channel, chunks, HASH_BATCH, hashPool);
+
+        /* first chunk seen for each hash, and the hashes already sent */
+        ConcurrentMap<String, Chunk> chunkOf = new ConcurrentHashMap<String, Chunk>();
+        Set<String> sent = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        List<Future<?>> uploads = new ArrayList<Future<?>>();
+        List<String> hashes = new ArrayList<String>(chunks.size());
+
+        for (int i = 0; i < hashBatches.size(); i++) {
+            String[] batch = await(hashBatches.get(i));
+            List<String> fresh = new ArrayList<String>();
+            for (int j = 0; j < batch.length; j++) {
+                hashes.add(batch[j]);
+                chunkOf.putIfAbsent(batch[j], chunks.get(i * HASH_BATCH + j));
+                if (sent.add(batch[j])) {
+                    fresh.add(batch[j]);
+                }
+            }
+            if (!fresh.isEmpty()) {
+                submitUploads(uploads, channel, chunkOf, await(blocks.findMissingBlocks(fresh)));
+            }
+        }
+
+        for (int attempt = 0; attempt < MAX_COMMIT_ATTEMPTS; attempt++) {
+            for (Future<?> upload : uploads) {
+                await(upload);
+            }
+            uploads.clear();
+
+            FileInfo request = FileInfo.newBuilder()
+                    .setFilename(filename)
+                    .setVersion(version)
+                    .addAllBlocklist(hashes)
+                    .build();
+            WriteResult result = metadataStub.modifyFile(request);
+
+            switch (result.getResult()) {
+            case MISSING_BLOCKS:
+                submitUploads(uploads, channel, chunkOf, result.getMissingBlocksList());
+                break;
+            case OK:
+                if (cache != null) {
+                    cache.putChunks(channel, chunks, hashes);
+                }
+                return result;
+            default:
+                return result;
+            }
+        }
+        throw new IOException("Could not commit " + filename + " after " + MAX_COMMIT_ATTEMPTS + " attempts");
+    }
+
+    /* one upload per block server that owns some of the missing blocks */
+    private void submitUploads(List<Future<?>> uploads, FileChannel channel,
+                               ConcurrentMap<String, Chunk> chunkOf, List<String> missing) {
+        for (Map.Entry<Integer, List<String>> share : blocks.partition(missing).entrySet()) {
+            uploads.add(uploadPool.submit(new UploadTask(channel, chunkOf, share.getKey(), share.getValue())));
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Status.CANCELLED.withCause(e).asRuntimeException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static byte[] read(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("File shrank while it was being uploaded");
+            }
+        }
+        return buffer.array();
+    }
+
+    /* send the given blocks over one StoreBlocks stream to the server that owns them */
+    private final class UploadTask implements Runnable {
+        private final FileChannel channel;
+        private final ConcurrentMap<String, Chunk> chunkOf;
+        private final int node;
+        private final List<String> hashes;
+
+        UploadTask(FileChannel channel, ConcurrentMap<String, Chunk> chunkOf, int node, List<String> hashes) {
+            this.channel = channel;
+            this.chunkOf = chunkOf;
+            this.node = node;
+            this.hashes = hashes;
+        }
+
+        @Override
+        public void run() {
+            final Iterator<String> remaining = hashes.iterator();
+
+            BlockStreams.storeBlocks(blocks.asyncStub(node), new Iterator<Block>() {
+                @Override
+                public boolean hasNext() {
+                    return remaining.hasNext();
+                }
+
+                @Override
+                public Block next() {
+                    if (!remaining.hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    String hash = remaining.next();
+                    Chunk chunk = chunkOf.get(hash);
+                    if (chunk == null) {
+                        throw new IllegalStateException("Server asked for unknown block " + hash);
+                    }
+                    try {
+                        byte[] data = read(channel, chunk.offset, chunk.length);
+                        return Block.newBuilder()
+                                .setHash(hash)
+                                .setData(UnsafeByteOperations.unsafeWrap(data))
+                                .build();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,538 @@
+package surfstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import surfstore.MetadataStore.Info;
+import surfstore.SurfStoreBasic.FileInfo;
+import surfstore.SurfStoreBasic.LogEntry;
+import surfstore.SurfStoreBasic.SnapshotHeader;
+
+/**
+ * Durable log of MetadataStore writes, plus periodic snapshots of the
+ * whole file map.
+ *
+ * Every successful ModifyFile/DeleteFile is appended as a LogEntry and
+ * only acknowledged once the entry is on disk. Appends are group
+ * committed: one writer thread takes everything queued since its last
+ * write, writes it in one go and syncs it with a single fsync, so many
+ * concurrent writers share each fsync.
+ *
+ * The log is a series of segment files named after the index of their
+ * first entry. Each record is its length, a CRC32 of the entry, and the
+ * serialized LogEntry; recovery stops at the first torn or corrupt
+ * record. A snapshot holds the state of every file up to some index.
+ * Once one is written, the segments it covers are deleted. Startup loads
+ * the newest snapshot and replays only the log entries after it.
+ *
+ * Entries carry the full new state of a file, and a file's version only
+ * ever grows, so replay keeps the highest version seen for each file.
+ * That makes replay independent of the order in which concurrent writes
+ * to one file were logged.
+ *
+ * The entries since the last trim are also kept in memory, so they can
+ * be shipped to followers without reading them back from disk.
+ */
+public final class WriteAheadLog implements Closeable {
+    private static final Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final File dir;
+    private final long segmentSize;
+    private final Thread writer;
+
+    /* guarded by this */
+    private List<Pending> queue;
+    private long lastIndex;
+    private long snapshotIndex;
+    private List<LogEntry> tail;
+    private long tailStart;
+    private boolean rollRequested;
+    private boolean closed;
+    private IOException failure;
+
+    private volatile long durableIndex;
+
+    /* only touched by the writer thread once it has started */
+    private FileChannel segment;
+    private long segmentBytes;
+
+    public WriteAheadLog(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public WriteAheadLog(File dir, long segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.queue = new ArrayList<Pending>();
+        this.tail = new ArrayList<LogEntry>();
+        this.tailStart = 1;
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "wal-writer");
+        this.writer.setDaemon(true);
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create data directory " + dir);
+        }
+    }
+
+    /**
+     * Load the newest snapshot and the log after it into files, then start
+     * accepting appends. Must be called once, before any append.
+     */
+    public void recover(ConcurrentMap<String, Info> files) throws IOException {
+        recover(files, true);
+    }
+
+    /**
+     * Like recover(files), but if replay is false only the snapshot is
+     * loaded into files. The log after it is read back but not applied, as
+     * a follower does: it cannot tell which of those entries the leader has
+     * committed until the leader says so.
+     */
+    public synchronized void recover(ConcurrentMap<String, Info> files, boolean replay) throws IOException {
+        File[] snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        if (snapshots.length > 0) {
+            File newest = snapshots[snapshots.length - 1];
+            snapshotIndex = loadSnapshot(newest, files);
+            lastIndex = snapshotIndex;
+            tailStart = snapshotIndex + 1;
+            logger.info("Loaded snapshot " + newest.getName() + " with " + files.size() + " files");
+        }
+
+        int replayed = 0;
+        for (File file : list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            for (LogEntry entry : readSegment(file)) {
+                if (entry.getIndex() == lastIndex + 1) {
+                    if (replay) {
+                        apply(files, entry.getFile());
+                    }
+                    tail.add(entry);
+                    lastIndex = entry.getIndex();
+                    replayed++;
+                }
+            }
+        }
+        logger.info((replay ? "Replayed " : "Read ") + replayed + " log entries, last index " + lastIndex);
+        durableIndex = lastIndex;
+
+        openSegment(lastIndex + 1);
+        writer.start();
+    }
+
+    /**
+     * Log a write. The entry gets the next index; the future completes
+     * with it once the entry is durable.
+     */
+    public synchronized ListenableFuture<LogEntry> append(FileInfo file) {
+        return enqueue(LogEntry.newBuilder().setIndex(lastIndex + 1).setFile(file).build());
+    }
+
+    /**
+     * Log an entry that already has an index, as a follower does with the
+     * entries it gets from the leader. The index must be the one after the
+     * last index.
+     */
+    public synchronized ListenableFuture<LogEntry> append(LogEntry entry) {
+        if (entry.getIndex() != lastIndex + 1) {
+            throw new IllegalArgumentException("Expected index " + (lastIndex + 1) + ", got " + entry.getIndex());
+        }
+        return enqueue(entry);
+    }
+
+    private ListenableFuture<LogEntry> enqueue(LogEntry entry) {
+        SettableFuture<LogEntry> durable = SettableFuture.create();
+        if (closed || failure != null) {
+            durable.setException(failure != null ? failure : new IOException("Log is closed"));
+            return durable;
+        }
+        lastIndex = entry.getIndex();
+        tail.add(entry);
+        queue.add(new Pending(entry, durable));
+        notifyAll();
+        return durable;
+    }
+
+    /**
+     * Index of the last entry appended, durable or not.
+     */
+    public synchronized long lastIndex() {
+        return lastIndex;
+    }
+
+    /**
+     * Index of the last entry known to be on disk.
+     */
+    public long durableIndex() {
+        return durableIndex;
+    }
+
+    /**
+     * Up to max of the entries after index, or null if some of them have
+     * already been trimmed from memory.
+     */
+    public synchronized List<LogEntry> entriesAfter(long index, int max) {
+        if (index + 1 < tailStart) {
+            return null;
+        }
+        int from = (int) (index + 1 - tailStart);
+        int to = Math.min(tail.size(), from + max);
+        return new ArrayList<LogEntry>(tail.subList(Math.min(from, to), to));
+    }
+
+    /**
+     * Drop the in-memory copies of the entries up to and including index.
+     */
+    public synchronized void trimTail(long index) {
+        int count = (int) Math.min(tail.size(), index + 1 - tailStart);
+        if (count > 0) {
+            tail.subList(0, count).clear();
+            tailStart += count;
+        }
+    }
+
+    /**
+     * Index of the last entry covered by the newest snapshot.
+     */
+    public synchronized long snapshotIndex() {
+        return snapshotIndex;
+    }
+
+    /**
+     * Write a snapshot of files up to index and drop the log segments it
+     * makes unnecessary.
+     *
+     * Every entry up to index must already be in the map when the
+     * snapshot starts. Entries after it may or may not be in it; they are
+     * replayed after the snapshot, which does no harm.
+     */
+    public void snapshot(Map<String, Info> files, long index) throws IOException {
+        synchronized (this) {
+            if (index <= snapshotIndex) {
+                return;
+            }
+            rollRequested = true;
+            notifyAll();
+        }
+
+        File target = new File(dir, String.format("%s%016d%s", SNAPSHOT_PREFIX, index, SNAPSHOT_SUFFIX));
+        File temp = new File(dir, target.getName() + TEMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            BufferedOutputStream buffered = new BufferedOutputStream(out, 1 << 16);
+            SnapshotHeader.newBuilder().setLastIndex(index).build().writeDelimitedTo(buffered);
+            for (Map.Entry<String, Info> file : files.entrySet()) {
+                toFileInfo(file.getKey(), file.getValue()).writeDelimitedTo(buffered);
+            }
+            buffered.flush();
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (this) {
+            snapshotIndex = Math.max(snapshotIndex, index);
+        }
+        deleteBefore(index);
+        logger.info("Wrote snapshot " + target.getName());
+    }
+
+    /**
+     * The newest snapshot file, or null if there is none yet.
+     */
+    public File latestSnapshot() {
+        File[] snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        return snapshots.length == 0 ? null : snapshots[snapshots.length - 1];
+    }
+
+    public File directory() {
+        return dir;
+    }
+
+    /**
+     * Replace the state of a follower that is too far behind to be sent the
+     * log with a snapshot received from the leader. The snapshot must be a
+     * synced file in this log's directory. It becomes this log's newest
+     * snapshot, files is brought up to date with it, and the log continues
+     * from the index after it. Returns that index.
+     */
+    public synchronized long install(File received, ConcurrentMap<String, Info> files) throws IOException {
+        ConcurrentMap<String, Info> installed = new ConcurrentHashMap<String, Info>();
+        long index = loadSnapshot(received, installed);
+        if (index <= lastIndex) {
+            received.delete();
+            return lastIndex;
+        }
+
+        File target = new File(dir, String.format("%s%016d%s", SNAPSHOT_PREFIX, index, SNAPSHOT_SUFFIX));
+        Files.move(received.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        files.putAll(installed);
+        files.keySet().retainAll(installed.keySet());
+
+        lastIndex = index;
+        snapshotIndex = index;
+        durableIndex = index;
+        tail.clear();
+        tailStart = index + 1;
+        rollRequested = true;
+        notifyAll();
+        deleteBefore(index);
+        logger.info("Installed snapshot " + target.getName() + " with " + files.size() + " files");
+        return index;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (segment != null) {
+            segment.close();
+        }
+    }
+
+    /**
+     * Store a file's new state unless the map already has the same or a
+     * newer version of it. Returns whether the map changed.
+     */
+    static boolean apply(ConcurrentMap<String, Info> files, FileInfo file) {
+        Info updated = new Info(file.getVersion(), file.getBlocklistList());
+        while (true) {
+            Info existing = files.get(file.getFilename());
+            if (existing == null) {
+                if (files.putIfAbsent(file.getFilename(), updated) == null) {
+                    return true;
+                }
+            } else if (existing.version >= updated.version) {
+                return false;
+            } else if (files.replace(file.getFilename(), existing, updated)) {
+                return true;
+            }
+        }
+    }
+
+    static FileInfo toFileInfo(String filename, Info info) {
+        return FileInfo.newBuilder()
+                .setFilename(filename)
+                .setVersion(info.version)
+                .addAllBlocklist(info.hashList)
+                .build();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            List<Pending> batch;
+            boolean roll;
+            long nextIndex;
+            synchronized (this) {
+                while (queue.isEmpty() && !closed && !rollRequested) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                if (queue.isEmpty() && closed) {
+                    return;
+                }
+                batch = queue;
+                queue = new ArrayList<Pending>();
+                roll = rollRequested;
+                rollRequested = false;
+                nextIndex = batch.isEmpty() ? lastIndex + 1 : batch.get(0).entry.getIndex();
+            }
+
+            try {
+                if (roll || segmentBytes >= segmentSize) {
+                    segment.close();
+                    openSegment(nextIndex);
+                }
+                write(batch);
+            } catch (IOException e) {
+                logger.severe("Write-ahead log failed: " + e);
+                synchronized (this) {
+                    failure = e;
+                    batch.addAll(queue);
+                    queue.clear();
+                }
+                for (Pending pending : batch) {
+                    pending.durable.setException(e);
+                }
+                return;
+            }
+            if (!batch.isEmpty()) {
+                synchronized (this) {
+                    /* an installed snapshot may have moved it past this batch */
+                    durableIndex = Math.max(durableIndex, batch.get(batch.size() - 1).entry.getIndex());
+                }
+            }
+            for (Pending pending : batch) {
+                pending.durable.set(pending.entry);
+            }
+        }
+    }
+
+    private void write(List<Pending> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Pending pending : batch) {
+            byte[] record = pending.entry.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(record, 0, record.length);
+            out.writeInt(record.length);
+            out.writeInt((int) crc.getValue());
+            out.write(record);
+        }
+        out.flush();
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            segment.write(buffer);
+        }
+        segment.force(false);
+        segmentBytes += buffer.capacity();
+    }
+
+    private void openSegment(long firstIndex) throws IOException {
+        File file = new File(dir, String.format("%s%016d%s", SEGMENT_PREFIX, firstIndex, SEGMENT_SUFFIX));
+        segment = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        /* a segment with this name can only hold a torn tail, or nothing at all */
+        segment.truncate(0);
+        segmentBytes = 0;
+    }
+
+    /* delete snapshots older than the given one, and the log segments it covers */
+    private void deleteBefore(long index) {
+        File[] snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        for (File snapshot : snapshots) {
+            if (fileIndex(snapshot, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX) < index) {
+                snapshot.delete();
+            }
+        }
+
+        /* a segment is covered if the one after it starts at or before index + 1 */
+        File[] segments = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        for (int i = 0; i + 1 < segments.length; i++) {
+            if (fileIndex(segments[i + 1], SEGMENT_PREFIX, SEGMENT_SUFFIX) <= index + 1) {
+                segments[i].delete();
+            }
+        }
+    }
+
+    private static long loadSnapshot(File file, ConcurrentMap<String, Info> files) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            SnapshotHeader header = SnapshotHeader.parseDelimitedFrom(in);
+            if (header == null) {
+                throw new IOException("Empty snapshot " + file);
+            }
+            FileInfo info;
+            while ((info = FileInfo.parseDelimitedFrom(in)) != null) {
+                apply(files, info);
+            }
+            return header.getLastIndex();
+        }
+    }
+
+    private static List<LogEntry> readSegment(File file) throws IOException {
+        List<LogEntry> entries = new ArrayList<LogEntry>();
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                CRC32 crc = new CRC32();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                entries.add(LogEntry.parseFrom(record));
+                valid += RECORD_HEADER_SIZE + length;
+            }
+        } catch (EOFException e) {
+            /* torn final record */
+        }
+        if (valid < file.length()) {
+            logger.warning("Ignoring " + (file.length() - valid) + " trailing bytes of " + file.getName());
+        }
+        return entries;
+    }
+
+    private File[] list(final String prefix, final String suffix) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith(prefix) && name.endsWith(suffix);
+            }
+        });
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static long fileIndex(File file, String prefix, String suffix) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+    }
+
+    private static final class Pending {
+        final LogEntry entry;
+        final SettableFuture<LogEntry> durable;
+
+        Pending(LogEntry entry, SettableFuture<LogEntry> durable) {
+            this.entry = entry;
+            this.durable = durable;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package surfstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.grpc.stub.StreamObserver;
+import surfstore.MetadataStore.MetadataStoreImpl;
+import surfstore.SurfStoreBasic.AppendRequest;
+import surfstore.SurfStoreBasic.AppendResponse;
+import surfstore.SurfStoreBasic.FileInfo;
+import surfstore.SurfStoreBasic.LogEntry;
+
+/**
+ * A follower must not let reads see a write before the leader says it is
+ * committed, whether the write just arrived or was read back from the log
+ * after a restart.
+ */
+public class FollowerTest {
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    private WriteAheadLog log;
+
+    @After
+    public void closeLog() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    @Test
+    public void uncommittedEntryIsNotRead() throws Exception {
+        MetadataStoreImpl follower = start();
+        Recorder<AppendResponse> responses = new Recorder<AppendResponse>();
+        StreamObserver<AppendRequest> stream = follower.appendEntries(responses);
+
+        stream.onNext(AppendRequest.newBuilder()
+                .setPrevIndex(0)
+                .addEntries(entry(1, "a.txt", 1))
+                .setCommitIndex(0)
+                .build());
+        assertEquals(1, responses.next().getLastIndex());
+        assertEquals(0, read(follower, "a.txt").getVersion());
+
+        stream.onNext(AppendRequest.newBuilder()
+                .setPrevIndex(1)
+                .setCommitIndex(1)
+                .build());
+        responses.next();
+        assertEquals(1, read(follower, "a.txt").getVersion());
+    }
+
+    @Test
+    public void restartDoesNotReplayUncommittedEntries() throws Exception {
+        MetadataStoreImpl follower = start();
+        Recorder<AppendResponse> responses = new Recorder<AppendResponse>();
+        follower.appendEntries(responses).onNext(AppendRequest.newBuilder()
+                .setPrevIndex(0)
+                .addEntries(entry(1, "a.txt", 1))
+                .addEntries(entry(2, "a.txt", 2))
+                .setCommitIndex(1)
+                .build());
+        assertEquals(2, responses.next().getLastIndex());
+        assertEquals(1, read(follower, "a.txt").getVersion());
+        log.close();
+
+        follower = start();
+        assertEquals(0, read(follower, "a.txt").getVersion());
+
+        follower.appendEntries(responses).onNext(AppendRequest.newBuilder()
+                .setPrevIndex(2)
+                .setCommitIndex(2)
+                .build());
+        responses.next();
+        assertEquals(2, read(follower, "a.txt").getVersion());
+    }
+
+    /* a follower that answers reads from its own state, recovered from dir */
+    private MetadataStoreImpl start() throws IOException {
+        log = new WriteAheadLog(dir.getRoot());
+        MetadataStoreImpl follower = new MetadataStoreImpl(false, null, log, null, null, 0, new Stats(),
+                new AccessLog(0, Level.OFF), new KnownBlocks(0, 0), 600000);
+        log.recover(follower.storedFile, false);
+        follower.lastApplied = log.snapshotIndex();
+        return follower;
+    }
+
+    private static LogEntry entry(long index, String filename, int version) {
+        return LogEntry.newBuilder()
+                .setIndex(index)
+                .setFile(FileInfo.newBuilder()
+                        .setFilename(filename)
+                        .setVersion(version)
+                        .addBlocklist("h" + version))
+                .build();
+    }
+
+    private static FileInfo read(MetadataStoreImpl store, String filename) throws InterruptedException {
+        Recorder<FileInfo> result = new Recorder<FileInfo>();
+        store.readFile(FileInfo.newBuilder().setFilename(filename).build(), result);
+        return result.next();
+    }
+
+    /* collects what a server method sends back */
+    private static final class Recorder<T> implements StreamObserver<T> {
+        private final BlockingQueue<T> values = new LinkedBlockingQueue<T>();
+        private volatile Throwable error;
+
+        @Override
+        public void onNext(T value) {
+            values.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+
+        T next() throws InterruptedException {
+            T value = values.poll(5, TimeUnit.SECONDS);
+            assertTrue("no response, error " + error, value != null);
+            return value;
+        }
+    }
+}